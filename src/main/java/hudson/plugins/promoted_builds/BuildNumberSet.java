@@ -0,0 +1,128 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.Run;
+import hudson.util.TextFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.StringTokenizer;
+
+/**
+ * Immutable set of build numbers, kept as a sorted <tt>int[]</tt>.
+ *
+ * <p>
+ * Used in place of collections of {@link Run}s where only the identity of the builds matters,
+ * so that the builds themselves aren't kept in memory.
+ */
+public final class BuildNumberSet {
+    private final int[] numbers;
+
+    public static final BuildNumberSet EMPTY = new BuildNumberSet(new int[0]);
+
+    private BuildNumberSet(int[] sortedNumbers) {
+        this.numbers = sortedNumbers;
+    }
+
+    public static BuildNumberSet of(int... numbers) {
+        int[] a = numbers.clone();
+        Arrays.sort(a);
+        // drop duplicates
+        int n = 0;
+        for (int i=0; i<a.length; i++)
+            if (n==0 || a[n-1]!=a[i])
+                a[n++] = a[i];
+        return new BuildNumberSet(n==a.length ? a : Arrays.copyOf(a,n));
+    }
+
+    public static BuildNumberSet of(Collection<? extends Run> builds) {
+        int[] a = new int[builds.size()];
+        int i = 0;
+        for (Run r : builds)
+            a[i++] = r.getNumber();
+        return of(a);
+    }
+
+    public boolean contains(int number) {
+        return Arrays.binarySearch(numbers, number)>=0;
+    }
+
+    /**
+     * Does this set have any number in common with the given one?
+     */
+    public boolean intersects(BuildNumberSet that) {
+        int i=0, j=0;
+        while (i<numbers.length && j<that.numbers.length) {
+            if (numbers[i]==that.numbers[j])    return true;
+            if (numbers[i]<that.numbers[j])     i++;
+            else                                j++;
+        }
+        return false;
+    }
+
+    public int size() {
+        return numbers.length;
+    }
+
+    public boolean isEmpty() {
+        return numbers.length==0;
+    }
+
+    /**
+     * Build numbers in the ascending order.
+     */
+    public int[] toArray() {
+        return numbers.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BuildNumberSet && Arrays.equals(numbers, ((BuildNumberSet)o).numbers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(numbers);
+    }
+
+    /**
+     * Space-separated build numbers, which is also the persisted form.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (int n : numbers) {
+            if (buf.length()>0) buf.append(' ');
+            buf.append(n);
+        }
+        return buf.toString();
+    }
+
+    public static BuildNumberSet fromString(String s) {
+        StringTokenizer tokens = new StringTokenizer(s);
+        int[] a = new int[tokens.countTokens()];
+        for (int i=0; i<a.length; i++)
+            a[i] = Integer.parseInt(tokens.nextToken());
+        return of(a);
+    }
+
+    /**
+     * Reads a set written by {@link #write(File)}.
+     *
+     * @return
+     *      null if the file doesn't exist.
+     */
+    public static BuildNumberSet read(File f) throws IOException {
+        if (!f.exists())    return null;
+        try {
+            return fromString(new TextFile(f).read());
+        } catch (NumberFormatException e) {
+            throw (IOException)new IOException("Corrupt "+f).initCause(e);
+        }
+    }
+
+    public void write(File f) throws IOException {
+        new TextFile(f).write(toString());
+    }
+}
@@ -41,7 +41,7 @@ public class CopyListener extends ItemListener {
                         "Failed to copy/load promotion " + subdir + " into new job", e);
                 }
                 // Trigger loading of these files
-                prop.setOwner(prop.getOwner());
+                prop.reload();
             }
         }
     }
@@ -0,0 +1,145 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.Run;
+import hudson.model.Saveable;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces repeated saves of the same object into one write.
+ *
+ * <p>
+ * A promotion touches the same build several times in a row: when it qualifies,
+ * when the promotion completes, and when other processes are considered as a result.
+ * These all go through here.
+ *
+ * <p>
+ * {@link #save(Saveable)} only marks the object dirty. Dirty objects are written
+ * once after a short delay, no matter how many times they were marked in between.
+ * {@link #flush(Saveable)} writes one of them right away if it's pending, and
+ * {@link #flush()} writes all of them, which {@link PluginImpl} does
+ * when Hudson shuts down.
+ *
+ * <p>
+ * The delay in milliseconds can be tuned with the
+ * {@code hudson.plugins.promoted_builds.DeferredSaver.delay} system property.
+ */
+public final class DeferredSaver {
+    private DeferredSaver() {}
+
+    private static final long DELAY = Long.getLong(DeferredSaver.class.getName()+".delay", 2000);
+
+    /**
+     * Objects waiting to be saved, in the order they were first marked.
+     */
+    private static Set<Saveable> dirty = new LinkedHashSet<Saveable>();
+
+    /**
+     * True if a flush is already scheduled for {@link #dirty}.
+     */
+    private static boolean scheduled;
+
+    private static final AtomicLong requested = new AtomicLong();
+    private static final AtomicLong performed = new AtomicLong();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Promotion deferred saver");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Schedules the given object to be saved shortly.
+     */
+    public static void save(Saveable s) {
+        requested.incrementAndGet();
+        synchronized (DeferredSaver.class) {
+            dirty.add(s);
+            if (scheduled)  return;
+            scheduled = true;
+        }
+        TIMER.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves everything that's pending right now.
+     */
+    public static void flush() {
+        Set<Saveable> batch;
+        synchronized (DeferredSaver.class) {
+            batch = dirty;
+            dirty = new LinkedHashSet<Saveable>();
+            scheduled = false;
+        }
+
+        for (Saveable s : batch)
+            write(s);
+    }
+
+    /**
+     * Saves the given object right away if it's waiting to be saved.
+     *
+     * @return
+     *      false if it wasn't pending.
+     */
+    public static boolean flush(Saveable s) {
+        synchronized (DeferredSaver.class) {
+            if (!dirty.remove(s))
+                return false;
+        }
+        write(s);
+        return true;
+    }
+
+    private static void write(Saveable s) {
+        // don't resurrect the directory of a build deleted in the mean time
+        if (s instanceof Run && !((Run)s).getRootDir().isDirectory())
+            return;
+        try {
+            s.save();
+            performed.incrementAndGet();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save "+s, e);
+        }
+    }
+
+    /**
+     * Number of saves requested so far.
+     */
+    public static long getRequestCount() {
+        return requested.get();
+    }
+
+    /**
+     * Number of writes actually performed so far.
+     */
+    public static long getSaveCount() {
+        return performed.get();
+    }
+
+    /**
+     * Number of objects waiting to be saved.
+     */
+    public static int getPendingCount() {
+        synchronized (DeferredSaver.class) {
+            return dirty.size();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DeferredSaver.class.getName());
+}
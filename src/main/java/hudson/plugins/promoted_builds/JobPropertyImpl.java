@@ -11,12 +11,12 @@ import hudson.model.Descriptor;
 import hudson.model.Failure;
 import hudson.model.Hudson;
 import hudson.model.ItemGroup;
-import hudson.model.ItemGroupMixIn;
 import hudson.model.Items;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import hudson.model.Label;
+import hudson.plugins.promoted_builds.conditions.DownstreamPassCondition;
 import hudson.tasks.BuildStep;
 import hudson.util.FormValidation;
 import net.sf.json.JSONArray;
@@ -27,10 +27,25 @@ import org.kohsuke.stapler.StaplerRequest;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import org.antlr.runtime.RecognitionException;
 import org.kohsuke.stapler.QueryParameter;
@@ -39,8 +54,8 @@ import org.kohsuke.stapler.QueryParameter;
  * Promotion processes defined for a project.
  *
  * <p>
- * TODO: a possible performance problem as every time the owner job is reconfigured,
- * all the promotion processes get reloaded from the disk.
+ * When the owner job is reconfigured, the existing instance is {@link #reconfigure(StaplerRequest, JSONObject) reconfigured}
+ * in place, so that the promotion processes don't get reloaded from the disk.
  *
  * @author Kohsuke Kawaguchi
  */
@@ -56,6 +71,33 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
      */
     private transient /*final*/ List<PromotionProcess> activeProcesses;
 
+    /**
+     * {@link PromotionCondition} type to the subset of {@link #activeProcesses} that use
+     * a condition of that type. Read-only, and replaced as a whole when rebuilt.
+     */
+    private transient volatile Map<Class<?>,List<PromotionProcess>> activeProcessesByCondition;
+
+    /**
+     * Directories of the inactive processes that are yet to be loaded, or null if there's none.
+     */
+    private transient volatile List<File> deferred;
+
+    /**
+     * Tracks the background loading started by {@link #setOwner(AbstractProject)}.
+     */
+    private transient volatile Future<?> loading;
+    private transient volatile Thread loader;
+
+    /**
+     * {@link #processes} by their names. Read-only, and replaced as a whole when rebuilt.
+     */
+    private transient volatile Map<String,PromotionProcess> processesByName;
+
+    /**
+     * Created lazily by {@link #getJournal()}.
+     */
+    private transient volatile PromotionJournal journal;
+
     /**
      * These {@link PromotionProcess}es are active.
      */
@@ -109,6 +151,56 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
         init();
     }
 
+    /**
+     * Applies the submitted configuration to this instance, reusing the {@link PromotionProcess}es
+     * that are already loaded. Processes whose configuration didn't change are left untouched,
+     * and so are the inactive ones, which aren't even loaded unless they are brought back.
+     */
+    /*package*/ synchronized void reconfigure(StaplerRequest req, JSONObject json) throws Descriptor.FormException, IOException {
+        if(json.has("promotions"))
+            json = json.getJSONObject("promotions");
+        JSONArray configs = JSONArray.fromObject(json.get("config"));
+
+        Set<String> names = new HashSet<String>();
+        for( Object o : configs ) {
+            String name = ((JSONObject)o).getString("name");
+            try {
+                Hudson.checkGoodName(name);
+            } catch (Failure f) {
+                throw new Descriptor.FormException(f.getMessage(), name);
+            }
+            names.add(name);
+        }
+        // an archived process may be brought back
+        loadDeferred(names);
+
+        List<PromotionProcess> newProcesses = new ArrayList<PromotionProcess>(processes);
+        for( Object o : configs ) {
+            JSONObject c = (JSONObject)o;
+            String name = c.getString("name");
+
+            PromotionProcess p = null;
+            for (PromotionProcess q : newProcesses) {
+                // case insensitive, as the directories may be
+                if (q.getName().equalsIgnoreCase(name)) {
+                    p = q;
+                    break;
+                }
+            }
+            if (p==null) {
+                p = new PromotionProcess(this,name);
+                newProcesses.add(p);
+            }
+
+            p.configure(req,c);
+        }
+
+        activeProcessNames.clear();
+        activeProcessNames.addAll(names);
+        processes = newProcesses;
+        buildActiveProcess();
+    }
+
     private void init() throws IOException {
         // load inactive processes
         File[] subdirs = getRootDir().listFiles(new FileFilter() {
@@ -130,6 +222,7 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
      * Adds a new promotion process of the given name.
      */
     public PromotionProcess addProcess(String name) throws IOException {
+        loadDeferred();
         PromotionProcess p = new PromotionProcess(this, name);
         activeProcessNames.add(name);
         processes.add(p);
@@ -139,20 +232,189 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
 
     @Override
     protected void setOwner(AbstractProject<?,?> owner) {
+        // already set up for this owner, for example by the constructors or by reconfigure()
+        boolean loaded = owner==this.owner && processes!=null;
+
         super.setOwner(owner);
+        synchronized (INSTANCES) {
+            INSTANCES.put(owner, new WeakReference<JobPropertyImpl>(this));
+        }
 
         // readResolve is too early because we don't have our parent set yet,
         // so use this as the initialization opportunity.
-        // CopyListener is also using setOwner to re-init after copying config from another job.
-        processes = new ArrayList<PromotionProcess>(ItemGroupMixIn.<String,PromotionProcess>loadChildren(
-            this,getRootDir(),ItemGroupMixIn.KEYED_BY_NAME).values());
+        // the processes of all the jobs are loaded in parallel, and accessors wait for them.
+        if (!loaded) {
+            processes = new ArrayList<PromotionProcess>();
+            loading = LOADER.submit(new Runnable() {
+                public void run() {
+                    loader = Thread.currentThread();
+                    try {
+                        reload();
+                    } finally {
+                        loader = null;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the active promotion processes from the disk. Inactive ones are only
+     * loaded when they are asked for, by {@link #loadDeferred()}.
+     * {@link CopyListener} uses this to re-init after copying config from another job.
+     */
+    /*package*/ void reload() {
+        long start = System.currentTimeMillis();
+
+        List<PromotionProcess> loaded = new ArrayList<PromotionProcess>();
+        List<File> inactive = new ArrayList<File>();
+        File[] subdirs = getRootDir().listFiles(new FileFilter() {
+            public boolean accept(File child) {
+                return child.isDirectory() && new File(child,"config.xml").exists();
+            }
+        });
+        if (subdirs!=null) {
+            for (File subdir : subdirs) {
+                if (!isActiveProcessNameIgnoreCase(subdir.getName())) {
+                    inactive.add(subdir);
+                    continue;
+                }
+                try {
+                    loaded.add((PromotionProcess)Items.load(this, subdir, false));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load "+subdir, e);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load "+subdir, e);
+                }
+            }
+        }
+        processes = loaded;
+        deferred = inactive;
         try {
             buildActiveProcess();
         } catch (IOException e) {
             throw new Error(e);
         }
+
+        long time = System.currentTimeMillis()-start;
+        LOAD_TIME.addAndGet(time);
+        LOADED_PROCESSES.addAndGet(loaded.size());
+        LOGGER.log(time>=SLOW_LOAD ? Level.FINE : Level.FINER, "Loaded "+loaded.size()+" promotion processes of "
+                +getOwner().getFullName()+" in "+time+"ms, deferring "+inactive.size()+" inactive ones");
+
+        getJournal().checkSnapshot();
+    }
+
+    /**
+     * Loads the inactive processes skipped by {@link #reload()}, if it hasn't been done yet.
+     */
+    private void loadDeferred() {
+        loadDeferred(null);
     }
 
+    /**
+     * Loads the inactive processes of the given names, if there are any.
+     *
+     * @param names
+     *      names of the processes, compared case insensitively like the directories may be.
+     *      Null to load all of them.
+     */
+    private void loadDeferred(Set<String> names) {
+        awaitLoaded();
+        if (deferred==null) return;
+
+        synchronized (this) {
+            if (deferred==null)     return;
+
+            List<File> dirs = new ArrayList<File>();
+            List<File> rest = new ArrayList<File>();
+            for (File subdir : deferred) {
+                if (names==null || containsIgnoreCase(names, subdir.getName()))
+                    dirs.add(subdir);
+                else
+                    rest.add(subdir);
+            }
+            if (dirs.isEmpty())     return;
+
+            long start = System.currentTimeMillis();
+            List<PromotionProcess> all = new ArrayList<PromotionProcess>(processes);
+            for (File subdir : dirs) {
+                try {
+                    all.add((PromotionProcess)Items.load(this, subdir, false));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load "+subdir, e);
+                }
+            }
+            processes = all;
+            deferred = rest.isEmpty() ? null : rest;
+            try {
+                buildActiveProcess();
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+            LOGGER.fine("Loaded "+dirs.size()+" inactive promotion processes of "+getOwner().getFullName()
+                    +" in "+(System.currentTimeMillis()-start)+"ms");
+        }
+    }
+
+    private static boolean containsIgnoreCase(Set<String> names, String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the loading started by {@link #setOwner(AbstractProject)} to complete.
+     */
+    private void awaitLoaded() {
+        Future<?> f = loading;
+        if (f==null || f.isDone() || loader==Thread.currentThread())
+            return;
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the promotion processes of "+getOwner().getFullName(), e.getCause());
+        }
+    }
+
+    /**
+     * Total time spent loading promotion processes from the disk, in milliseconds.
+     * As jobs are loaded in parallel, this can exceed the wall-clock time.
+     */
+    public static long getLoadTime() {
+        return LOAD_TIME.get();
+    }
+
+    /**
+     * Number of promotion processes loaded from the disk.
+     */
+    public static long getLoadedProcessCount() {
+        return LOADED_PROCESSES.get();
+    }
+
+    /**
+     * Finds the instance currently used for the given project, if any.
+     */
+    private static JobPropertyImpl getInstance(AbstractProject<?,?> owner) {
+        JobPropertyImpl jp = owner.getProperty(JobPropertyImpl.class);
+        if (jp!=null)   return jp;
+        // Hudson may have detached the property already when it processes a form submission
+        synchronized (INSTANCES) {
+            WeakReference<JobPropertyImpl> ref = INSTANCES.get(owner);
+            return ref!=null ? ref.get() : null;
+        }
+    }
+
+    /**
+     * Instances by the projects they are attached to. The values are weak as they refer to the keys.
+     */
+    private static final Map<AbstractProject<?,?>,WeakReference<JobPropertyImpl>> INSTANCES =
+            new WeakHashMap<AbstractProject<?,?>,WeakReference<JobPropertyImpl>>();
+
     /**
      * Builds {@link #activeProcesses}.
      */
@@ -169,6 +431,49 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
             // to a directory name that differs only in their case.
             p.renameTo(getActiveProcessName(p.getName()));
         }
+
+        Map<String,PromotionProcess> byName = new HashMap<String,PromotionProcess>();
+        for (PromotionProcess p : processes)
+            if (!byName.containsKey(p.getName()))
+                byName.put(p.getName(),p);
+        processesByName = Collections.unmodifiableMap(byName);
+
+        buildConditionIndex();
+        DownstreamPassCondition.RunListenerImpl.rebuildCache();
+    }
+
+    /**
+     * Builds {@link #activeProcessesByCondition}.
+     */
+    private void buildConditionIndex() {
+        List<PromotionProcess> active = activeProcesses;
+        if (active==null)   return; // still being configured
+
+        Map<Class<?>,List<PromotionProcess>> index = new HashMap<Class<?>,List<PromotionProcess>>();
+        for (PromotionProcess p : active) {
+            for (PromotionCondition cond : p.conditions) {
+                // register under super types, too, so that lookups see subtypes like instanceof would
+                for (Class<?> t=cond.getClass(); t!=PromotionCondition.class && t!=null; t=t.getSuperclass()) {
+                    List<PromotionProcess> l = index.get(t);
+                    if (l==null)
+                        index.put(t, l=new ArrayList<PromotionProcess>());
+                    if (!l.contains(p))
+                        l.add(p);
+                }
+            }
+        }
+        for (Map.Entry<Class<?>,List<PromotionProcess>> e : index.entrySet())
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        activeProcessesByCondition = Collections.unmodifiableMap(index);
+    }
+
+    /**
+     * Called by {@link PromotionProcess} when its configuration is saved,
+     * to keep the indices derived from the process configurations in sync.
+     */
+    /*package*/ void onProcessChanged(PromotionProcess p) {
+        buildConditionIndex();
+        DownstreamPassCondition.RunListenerImpl.rebuildCache();
     }
 
     /**
@@ -198,6 +503,7 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
      *      non-null and non-empty. Read-only.
      */
     public List<PromotionProcess> getItems() {
+        loadDeferred();
         return processes;
     }
 
@@ -205,9 +511,24 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
      * Gets the list of active promotion processes.
      */
     public List<PromotionProcess> getActiveItems() {
+        awaitLoaded();
         return activeProcesses;
     }
 
+    /**
+     * Gets the list of active promotion processes that have a condition of the given type.
+     *
+     * @return
+     *      can be empty but never null. Read-only.
+     */
+    public List<PromotionProcess> getActiveItems(Class<? extends PromotionCondition> conditionType) {
+        awaitLoaded();
+        Map<Class<?>,List<PromotionProcess>> index = activeProcessesByCondition;
+        List<PromotionProcess> r = index!=null ? index.get(conditionType) : null;
+        if (r==null)    return Collections.emptyList();
+        return r;
+    }
+
     /**
      * Gets {@link AbstractProject} that contains us.
      */
@@ -219,6 +540,16 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
      * Finds a config by name.
      */
     public PromotionProcess getItem(String name) {
+        awaitLoaded();
+        Map<String,PromotionProcess> byName = processesByName;
+        if (byName!=null) {
+            PromotionProcess p = byName.get(name);
+            if (p!=null || deferred==null)
+                return p;
+            loadDeferred();
+            return processesByName.get(name);
+        }
+        // not indexed yet
         for (PromotionProcess c : processes) {
             if(c.getName().equals(name))
                 return c;
@@ -230,6 +561,21 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
         return new File(getOwner().getRootDir(),"promotions");
     }
 
+    /**
+     * Gets the journal of the promotion activities of the owner project.
+     */
+    public PromotionJournal getJournal() {
+        PromotionJournal j = journal;
+        if (j==null) {
+            synchronized (this) {
+                if (journal==null)
+                    journal = new PromotionJournal(this);
+                j = journal;
+            }
+        }
+        return j;
+    }
+
     public void save() throws IOException {
         // there's nothing to save, actually
     }
@@ -281,6 +627,38 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
         return new PromotedProjectAction(job,this);
     }
 
+    private static final int LOADER_THREADS = Integer.getInteger(JobPropertyImpl.class.getName()+".loaderThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Loads the promotion processes of the jobs in parallel at startup.
+     * With an unbounded queue, the pool never grows past its core size, so that's where the parallelism is set.
+     */
+    private static final ThreadPoolExecutor LOADER = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Promotion process loader #"+n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        // don't keep the threads around once the startup is over
+        LOADER.allowCoreThreadTimeOut(true);
+    }
+
+    private static final AtomicLong LOAD_TIME = new AtomicLong();
+    private static final AtomicLong LOADED_PROCESSES = new AtomicLong();
+
+    /**
+     * Loading the processes of a job taking longer than this, in milliseconds, is reported at {@link Level#FINE}.
+     */
+    private static final long SLOW_LOAD = Long.getLong(JobPropertyImpl.class.getName()+".slowLoad", 1000);
+
+    private static final Logger LOGGER = Logger.getLogger(JobPropertyImpl.class.getName());
+
     @Extension
     public static final class DescriptorImpl extends JobPropertyDescriptor {
         public String getDisplayName() {
@@ -295,8 +673,16 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
         @Override
         public JobPropertyImpl newInstance(StaplerRequest req, JSONObject json) throws Descriptor.FormException {
             try {
-                if(json.has("promotions"))
+                if(json.has("promotions")) {
+                    List<Ancestor> ancs = req.getAncestors();
+                    Object owner = ancs.get(ancs.size()-1).getObject();
+                    JobPropertyImpl jp = owner instanceof AbstractProject ? getInstance((AbstractProject<?,?>)owner) : null;
+                    if (jp!=null) {
+                        jp.reconfigure(req, json);
+                        return jp;
+                    }
                     return new JobPropertyImpl(req, json);
+                }
                 return null;
             } catch (IOException e) {
                 throw new FormException("Failed to create",e,null); // TODO:hmm
@@ -348,19 +734,24 @@ public final class JobPropertyImpl extends JobProperty<AbstractProject<?,?>> imp
 
         public AutoCompletionCandidates doAutoCompleteAssignedLabelString(@QueryParameter String value) {
             AutoCompletionCandidates c = new AutoCompletionCandidates();
-            Set<Label> labels = Hudson.getInstance().getLabels();
+            LabelPrefixIndex labels = LabelPrefixIndex.get();
             List<String> queries = new AutoCompleteSeeder(value).getSeeds();
 
+            int room = MAX_AUTO_COMPLETION_CANDIDATES;
             for (String term : queries) {
-                for (Label l : labels) {
-                    if (l.getName().startsWith(term)) {
-                        c.add(l.getName());
-                    }
+                for (String name : labels.find(term, room)) {
+                    c.add(name);
+                    room--;
                 }
             }
             return c;
         }
 
+        /**
+         * Caps the number of labels sent back for each keystroke.
+         */
+        private static final int MAX_AUTO_COMPLETION_CANDIDATES = 100;
+
         /**
          * Utility class for taking the current input value and computing a list
          * of potential terms to match against the list of defined labels.
@@ -0,0 +1,95 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sorted array of the label names known to Hudson, so that label autocompletion
+ * can find the names that start with what's typed by binary search.
+ *
+ * <p>
+ * Rebuilt lazily when nodes come and go or change their configuration. As labels can
+ * also change in ways we don't get notified of, it's also rebuilt after {@link #TTL} expires.
+ */
+/*package*/ final class LabelPrefixIndex {
+    private final String[] names;
+    private final long created = System.currentTimeMillis();
+
+    private LabelPrefixIndex(String[] sortedNames) {
+        this.names = sortedNames;
+    }
+
+    /**
+     * Gets the label names that start with the given prefix, in the alphabetical order.
+     *
+     * @param limit
+     *      Maximum number of names to return.
+     */
+    List<String> find(String prefix, int limit) {
+        int i = Arrays.binarySearch(names, prefix);
+        if (i<0)    i = -i-1;   // insertion point, which is where the names with this prefix start
+
+        List<String> r = new ArrayList<String>();
+        for (; i<names.length && r.size()<limit && names[i].startsWith(prefix); i++)
+            r.add(names[i]);
+        return r;
+    }
+
+    private static volatile LabelPrefixIndex INSTANCE;
+
+    /**
+     * Gets the up-to-date index.
+     */
+    static LabelPrefixIndex get() {
+        LabelPrefixIndex index = INSTANCE;
+        if (index==null || System.currentTimeMillis()-index.created > TTL) {
+            Set<Label> labels = Hudson.getInstance().getLabels();
+            String[] names = new String[labels.size()];
+            int n = 0;
+            for (Label l : labels)
+                names[n++] = l.getName();
+            Arrays.sort(names, 0, n);
+            INSTANCE = index = new LabelPrefixIndex(n==names.length ? names : Arrays.copyOf(names,n));
+        }
+        return index;
+    }
+
+    static void invalidate() {
+        INSTANCE = null;
+    }
+
+    /**
+     * Drops the index when the set of nodes or their labels may have changed.
+     */
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidate();
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            invalidate();
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            invalidate();
+        }
+    }
+
+    /**
+     * How long the index is used before it's rebuilt anyway, in milliseconds.
+     */
+    public static long TTL = Long.getLong(LabelPrefixIndex.class.getName()+".ttl", 60*1000);
+}
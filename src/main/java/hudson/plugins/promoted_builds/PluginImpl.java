@@ -0,0 +1,16 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.Plugin;
+
+/**
+ * Plugin entry point.
+ */
+public class PluginImpl extends Plugin {
+    /**
+     * Writes out the promotion records whose save is still deferred.
+     */
+    @Override
+    public void stop() throws Exception {
+        DeferredSaver.flush();
+    }
+}
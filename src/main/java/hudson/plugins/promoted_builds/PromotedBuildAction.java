@@ -1,10 +1,13 @@
 package hudson.plugins.promoted_builds;
 
+import hudson.XmlFile;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.BuildBadgeAction;
 import hudson.model.Cause.UserCause;
+import hudson.model.Run;
+import hudson.model.Saveable;
 import hudson.util.CopyOnWriteList;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.HttpResponses;
@@ -12,32 +15,146 @@ import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * {@link Action} for {@link AbstractBuild} indicating that it's promoted.
  *
+ * <p>
+ * The promotion state of the build is kept in {@code promotions.xml} next to {@code build.xml},
+ * so that promotion activity doesn't need to rewrite the whole build record. Besides
+ * the {@link Status}es, other parts of the plugin can keep their per-build data there,
+ * as {@link #getAttachments(Class) attachments}.
+ *
  * @author Kohsuke Kawaguchi
  */
-public final class PromotedBuildAction implements BuildBadgeAction {
+public final class PromotedBuildAction implements BuildBadgeAction, Saveable {
     public final AbstractBuild<?,?> owner;
 
     /**
      * Per-process status.
+     *
+     * @deprecated
+     *      Only used to read the statuses from {@code build.xml} written by older versions.
+     *      Null once they are moved to {@link #getDataFile()}.
+     */
+    private CopyOnWriteList<Status> statuses;
+
+    /**
+     * What's stored in {@link #getDataFile()}. Loaded lazily.
+     */
+    private transient volatile Data data;
+
+    /**
+     * The contents of {@code promotions.xml}.
      */
-    private final CopyOnWriteList<Status> statuses = new CopyOnWriteList<Status>();
+    private static final class Data {
+        /**
+         * Per-process status.
+         */
+        private CopyOnWriteList<Status> statuses = new CopyOnWriteList<Status>();
+
+        private CopyOnWriteList<Object> attachments = new CopyOnWriteList<Object>();
+    }
 
     public PromotedBuildAction(AbstractBuild<?,?> owner) {
         assert owner!=null;
         this.owner = owner;
+        this.data = new Data();
     }
 
     public PromotedBuildAction(AbstractBuild<?,?> owner, Status firstStatus) {
         this(owner);
-        statuses.add(firstStatus);
+        data.statuses.add(firstStatus);
+        firstStatus.parent = this;
+    }
+
+    /**
+     * Gets the action of the given build, attaching a new one if there's none yet.
+     */
+    public static PromotedBuildAction getOrAttach(AbstractBuild<?,?> build) throws IOException {
+        synchronized (build) {
+            PromotedBuildAction a = build.getAction(PromotedBuildAction.class);
+            if (a==null) {
+                build.addAction(a=new PromotedBuildAction(build));
+                // this is the only time build.xml needs to be written, and the action must not be lost
+                // if we go down before the next deferred write, or promotions.xml would never be found
+                build.save();
+            }
+            return a;
+        }
+    }
+
+    private Data getData() {
+        Data d = data;
+        if (d==null) {
+            synchronized (this) {
+                if (data==null) {
+                    XmlFile f = getDataFile();
+                    if (f.exists()) {
+                        try {
+                            d = (Data)f.read();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to load "+f, e);
+                        }
+                    }
+                    if (d==null) {
+                        d = new Data();
+                        if (statuses!=null) {
+                            // not moved over yet
+                            for (Status s : statuses)
+                                d.statuses.add(s);
+                        }
+                    }
+                    if (d.statuses==null)       d.statuses = new CopyOnWriteList<Status>();
+                    if (d.attachments==null)    d.attachments = new CopyOnWriteList<Object>();
+                    for (Status s : d.statuses)
+                        s.parent = this;
+                    data = d;
+                }
+                d = data;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Writes the promotion state of the build to {@link #getDataFile()}.
+     */
+    public synchronized void save() throws IOException {
+        if (!owner.getRootDir().isDirectory())
+            return;     // the build is deleted
+        getDataFile().write(getData());
+        // from now on build.xml doesn't need to carry them
+        statuses = null;
+    }
+
+    private XmlFile getDataFile() {
+        return new XmlFile(Run.XSTREAM, new File(owner.getRootDir(), "promotions.xml"));
+    }
+
+    /**
+     * Gets the objects of the given type stored with the promotion state of this build.
+     */
+    public <T> List<T> getAttachments(Class<T> type) {
+        List<T> r = new ArrayList<T>();
+        for (Object o : getData().attachments)
+            if (type.isInstance(o))
+                r.add(type.cast(o));
+        return r;
+    }
+
+    /**
+     * Stores the given object with the promotion state of this build. The caller needs to {@link #save()}.
+     */
+    public void addAttachment(Object o) {
+        getData().attachments.add(o);
     }
 
     /**
@@ -58,7 +175,7 @@ public final class PromotedBuildAction implements BuildBadgeAction {
      * Checks if the given criterion is already promoted.
      */
     public boolean contains(PromotionProcess process) {
-        for (Status s : statuses)
+        for (Status s : getData().statuses)
             if(s.isFor(process))
                 return true;
         return false;
@@ -68,7 +185,7 @@ public final class PromotedBuildAction implements BuildBadgeAction {
      * Checks if the given criterion is already promoted.
      */
     public boolean contains(String name) {
-        for (Status s : statuses)
+        for (Status s : getData().statuses)
             if(s.name.equals(name))
                 return true;
         return false;
@@ -78,13 +195,13 @@ public final class PromotedBuildAction implements BuildBadgeAction {
      * Called when the build is qualified.
      */
     public synchronized boolean add(Status status) throws IOException {
-        for (Status s : statuses)
+        for (Status s : getData().statuses)
             if(s.name.equals(status.name))
                 return false; // already qualified. noop.
 
-        this.statuses.add(status);
+        getData().statuses.add(status);
         status.parent = this;
-        owner.save();
+        DeferredSaver.save(this);
         return true;
     }
 
@@ -92,7 +209,54 @@ public final class PromotedBuildAction implements BuildBadgeAction {
      * Gets the read-only view of all the promotions that this build achieved.
      */
     public List<Status> getPromotions() {
-        return statuses.getView();
+        return getData().statuses.getView();
+    }
+
+    /**
+     * Gets the badges to show for this build in the build history.
+     *
+     * @param size
+     *      Icon size, such as "16x16".
+     */
+    public List<BadgeIcon> getBadgeIcons(String size) {
+        return getBadgeIcons(size, getProject().getProperty(JobPropertyImpl.class));
+    }
+
+    private List<BadgeIcon> getBadgeIcons(String size, JobPropertyImpl jp) {
+        List<Status> statuses = getPromotions();
+        List<BadgeIcon> r = new ArrayList<BadgeIcon>(statuses.size());
+        for (Status s : statuses) {
+            PromotionProcess p = jp!=null ? jp.getItem(s.name) : null;
+            r.add(new BadgeIcon(s.name, s.getIcon(size,p)));
+        }
+        return r;
+    }
+
+    /**
+     * Icon that represents a {@link Status} in the build history.
+     */
+    public static final class BadgeIcon {
+        /**
+         * Name of the promotion process, which is also used as the tooltip.
+         */
+        public final String name;
+        /**
+         * URL of the icon, relative to the context root.
+         */
+        public final String icon;
+
+        BadgeIcon(String name, String icon) {
+            this.name = name;
+            this.icon = icon;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getIcon() {
+            return icon;
+        }
     }
 
     /**
@@ -116,14 +280,14 @@ public final class PromotedBuildAction implements BuildBadgeAction {
      * Or null if not found.
      */
     public Status getPromotion(String name) {
-        for (Status s : statuses)
+        for (Status s : getData().statuses)
             if(s.name.equals(name))
                 return s;
         return null;
     }
 
     public boolean hasPromotion() {
-        return !statuses.isEmpty();
+        return !getData().statuses.isEmpty();
     }
 
     public boolean canPromote() {
@@ -154,12 +318,7 @@ public final class PromotedBuildAction implements BuildBadgeAction {
         if (pp==null)
             return null;
 
-        for (PromotionProcess p : pp.getItems()) {
-            if(p.getName().equals(name))
-                return p;
-        }
-
-        return null;
+        return pp.getItem(name);
     }
 
     public String getIconFileName() {
@@ -176,8 +335,10 @@ public final class PromotedBuildAction implements BuildBadgeAction {
 
     private Object readResolve() {
         // resurrect the parent pointer when read from disk
-        for (Status s : statuses)
-            s.parent = this;
+        if (statuses!=null) {
+            for (Status s : statuses)
+                s.parent = this;
+        }
         return this;
     }
 
@@ -210,8 +371,18 @@ public final class PromotedBuildAction implements BuildBadgeAction {
         if(p==null)
             throw new IllegalStateException("This project doesn't have the promotion criterion called "+name);
 
-        p.promote(owner,new UserCause(),new ManualPromotionBadge());
+        if (contains(p))
+            p.scheduleBuild2(owner,new UserCause());    // already qualified, so just run it again
+        else
+            p.promote(owner,new UserCause(),new ManualPromotionBadge());
 
         return HttpResponses.redirectToDot();
     }
+
+    static {
+        // promotions.xml is read and written with the same converters as build.xml
+        Run.XSTREAM.alias("promoted-build-action", Data.class);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotedBuildAction.class.getName());
 }
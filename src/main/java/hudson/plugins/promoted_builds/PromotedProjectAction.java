@@ -1,12 +1,24 @@
 package hudson.plugins.promoted_builds;
 
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Item;
 import hudson.model.PermalinkProjectAction;
 import hudson.model.ProminentProjectAction;
+import hudson.util.IOException2;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -17,6 +29,11 @@ public class PromotedProjectAction implements ProminentProjectAction, PermalinkP
 	
 	//TODO externalize to a plugin property?
 	private static final int SUMMARY_SIZE = 10;
+
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final long DEFAULT_EVENT_TIMEOUT = 30*1000;
+    private static final long MAX_EVENT_TIMEOUT = 120*1000;
 	
 	public final AbstractProject<?,?> owner;
     private final JobPropertyImpl property;
@@ -39,30 +56,34 @@ public class PromotedProjectAction implements ProminentProjectAction, PermalinkP
     }
 
     public AbstractBuild<?,?> getLatest(PromotionProcess p) {
-    	List<Promotion> list = getPromotions( p );
-        return list.size() > 0 ? list.get(0) : null;
+        if (p==null)    return null;
+        // it's almost always the latest one, so go back a page at a time rather than reading the whole history
+        int before = Integer.MAX_VALUE;
+        List<PromotionHistory.Entry> page;
+        do {
+            page = p.getHistory().getPage(before, 0, Long.MAX_VALUE, SUMMARY_SIZE);
+            for (PromotionHistory.Entry e : page) {
+                Promotion b = p.getBuildByNumber(e.getNumber());
+                if (b!=null)
+                    return b;
+                before = e.getNumber();
+            }
+        } while (page.size()==SUMMARY_SIZE);
+        return null;
     }
 
     /**
      * Finds the last promoted build under the given criteria.
      */
     public AbstractBuild<?,?> getLatest(String name) {
-    	List<Promotion> list = getPromotions( getProcess(name) );
-        return list.size() > 0 ? list.get(0) : null;
+        return getLatest(getProcess(name));
     }
 
 
     public List<Promotion> getPromotions(PromotionProcess promotionProcess){
-    	List<Promotion> list = new ArrayList<Promotion>(); 
-        for( AbstractBuild<?,?> build : owner.getBuilds() ) {
-            PromotedBuildAction a = build.getAction(PromotedBuildAction.class);
-            if(a!=null && a.contains(promotionProcess))
-            	list.addAll( a.getPromotionBuilds(promotionProcess) );
-        }
-        Collections.sort(list);
-        return list;
+        return resolve(promotionProcess, promotionProcess.getHistory().getAll());
     }
-    
+
     /**
      * returns the summary of the latest promotions for a promotion process.
      * 
@@ -70,12 +91,24 @@ public class PromotedProjectAction implements ProminentProjectAction, PermalinkP
      * @return
      */
     public List<Promotion> getPromotionsSummary(PromotionProcess promotionProcess){
-    	List<Promotion> promotionList = this.getPromotions(promotionProcess);
-    	if(promotionList.size() > SUMMARY_SIZE ){
-    		return promotionList.subList(0, SUMMARY_SIZE);
-    	}else{
-    		return promotionList;
-    	}
+        return resolve(promotionProcess, promotionProcess.getHistory().getLatest(SUMMARY_SIZE));
+    }
+
+    private List<Promotion> resolve(PromotionProcess p, List<PromotionHistory.Entry> entries) {
+        List<Promotion> list = new ArrayList<Promotion>(entries.size());
+        for (PromotionHistory.Entry e : entries) {
+            Promotion b = p.getBuildByNumber(e.getNumber());
+            if (b!=null)
+                list.add(b);
+        }
+        return list;
+    }
+
+    /**
+     * Same as {@link #getPromotionsSummary(PromotionProcess)}, but without loading the promotion records.
+     */
+    public List<PromotionHistory.Entry> getHistorySummary(PromotionProcess promotionProcess) {
+        return promotionProcess.getHistory().getLatest(SUMMARY_SIZE);
     }
     
     
@@ -86,6 +119,175 @@ public class PromotedProjectAction implements ProminentProjectAction, PermalinkP
         return r;
     }
 
+    /**
+     * Exposes the promotion history of a process, newest first, as JSON or as XML ({@code format=xml}).
+     *
+     * <p>
+     * Supported query parameters are {@code process} (required), {@code cursor} to only return promotions
+     * whose number is smaller than it, {@code limit}, and {@code from}/{@code to} to only return
+     * promotions started in that range, in milliseconds since the epoch. The response includes
+     * the cursor for the next page, if there may be one.
+     */
+    public void doHistory(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        owner.checkPermission(Item.READ);
+
+        PromotionProcess p = getProcess(req.getParameter("process"));
+        if (p==null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such promotion process: "+req.getParameter("process"));
+            return;
+        }
+
+        int cursor, limit;
+        long from, to;
+        try {
+            cursor = (int)parse(req, "cursor", Integer.MAX_VALUE, 0, Integer.MAX_VALUE);
+            limit = (int)Math.min(parse(req, "limit", DEFAULT_PAGE_SIZE, 1, Integer.MAX_VALUE), MAX_PAGE_SIZE);
+            from = parse(req, "from", Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+            to = parse(req, "to", Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        List<PromotionHistory.Entry> page = p.getHistory().getPage(cursor, from, to, limit);
+        Integer next = page.size()==limit ? page.get(page.size()-1).getNumber() : null;
+
+        if ("xml".equals(req.getParameter("format"))) {
+            rsp.setContentType("application/xml;charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            w.print("<promotions process='"+Util.xmlEscape(p.getName())+"'");
+            if (next!=null)     w.print(" next='"+next+"'");
+            w.println(">");
+            for (PromotionHistory.Entry e : page) {
+                w.print("<promotion number='"+e.getNumber()+"' target='"+e.getTargetNumber()
+                        +"' timestamp='"+e.getTimeInMillis()+"'");
+                if (e.getResult()!=null)
+                    w.print(" result='"+e.getResult()+"'");
+                w.println("/>");
+            }
+            w.println("</promotions>");
+            w.flush();
+            return;
+        }
+
+        JSONArray promotions = new JSONArray();
+        for (PromotionHistory.Entry e : page) {
+            JSONObject o = new JSONObject();
+            o.put("number", e.getNumber());
+            o.put("target", e.getTargetNumber());
+            o.put("timestamp", e.getTimeInMillis());
+            o.put("result", e.getResult()!=null ? (Object)e.getResult().toString() : JSONNull.getInstance());
+            promotions.add(o);
+        }
+        JSONObject r = new JSONObject();
+        r.put("process", p.getName());
+        r.put("next", next!=null ? (Object)next : JSONNull.getInstance());
+        r.put("promotions", promotions);
+        write(rsp, r);
+    }
+
+    /**
+     * Exposes the promotion statistics of the active processes as JSON, from the {@link PromotionJournal}.
+     */
+    public void doStatistics(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        owner.checkPermission(Item.READ);
+
+        PromotionJournal journal = property.getJournal();
+        JSONArray processes = new JSONArray();
+        for (PromotionProcess p : property.getActiveItems()) {
+            PromotionJournal.Statistics s = journal.getStatistics(p.getName());
+            JSONObject o = new JSONObject();
+            o.put("name", p.getName());
+            o.put("lastQualified", journal.getLastQualified(p.getName()));
+            o.put("qualified", s.qualified);
+            o.put("attempts", s.attempts);
+            o.put("succeeded", s.succeeded);
+            o.put("failed", s.failed);
+            o.put("averageDuration", s.averageDuration);
+            processes.add(o);
+        }
+        JSONObject r = new JSONObject();
+        r.put("processes", processes);
+        write(rsp, r);
+    }
+
+    /**
+     * Long-polls for promotion lifecycle events of this project, as JSON.
+     *
+     * <p>
+     * Supported query parameters are {@code since}, the {@code next} value of the previous response
+     * (omit it to only get events from now on), {@code process} to only get events of that process,
+     * and {@code timeout}, how long to wait for an event in milliseconds.
+     * The response is sent as soon as there's an event, or when the timeout expires.
+     *
+     * @see PromotionEvents
+     */
+    public void doEvents(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        owner.checkPermission(Item.READ);
+
+        long since, timeout;
+        try {
+            since = parse(req, "since", 0, 0, Long.MAX_VALUE);
+            timeout = Math.min(parse(req, "timeout", DEFAULT_EVENT_TIMEOUT, 0, Long.MAX_VALUE), MAX_EVENT_TIMEOUT);
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        PromotionEvents.Page page;
+        try {
+            page = PromotionEvents.await(since, owner.getFullName(), req.getParameter("process"), timeout);
+        } catch (InterruptedException e) {
+            throw new IOException2(e);
+        }
+
+        JSONArray events = new JSONArray();
+        for (PromotionEvents.Event e : page.events) {
+            JSONObject o = new JSONObject();
+            o.put("id", e.id);
+            o.put("type", e.type.name());
+            o.put("process", e.process);
+            o.put("target", e.target);
+            o.put("promotion", e.promotion);
+            o.put("timestamp", e.timestamp);
+            events.add(o);
+        }
+        JSONObject r = new JSONObject();
+        r.put("next", page.next);
+        r.put("missed", page.missed);
+        r.put("events", events);
+        rsp.setHeader("Cache-Control", "no-cache");
+        write(rsp, r);
+    }
+
+    /**
+     * Parses a numeric query parameter.
+     *
+     * @throws NumberFormatException
+     *      if it's not a number, or it's out of the given range.
+     */
+    private static long parse(StaplerRequest req, String name, long defaultValue, long min, long max) {
+        String value = req.getParameter(name);
+        if (value==null || value.length()==0)
+            return defaultValue;
+        long v;
+        try {
+            v = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException(name+" is not a number: "+value);
+        }
+        if (v<min || v>max)
+            throw new NumberFormatException(name+" must be between "+min+" and "+max+": "+value);
+        return v;
+    }
+
+    private static void write(StaplerResponse rsp, JSONObject o) throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        o.write(w);
+        w.flush();
+    }
+
     public String getIconFileName() {
         return "star.gif";
     }
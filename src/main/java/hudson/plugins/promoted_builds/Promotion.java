@@ -117,6 +117,8 @@ public class Promotion extends AbstractBuild<PromotionProcess,Promotion>
             listener.getLogger().println("Promoting "+target);
 
             getStatus().addPromotionAttempt(Promotion.this);
+            getParent().getParent().getJournal().started(Promotion.this);
+            PromotionEvents.fire(PromotionEvents.Type.STARTED, getParent(), target, Promotion.this);
 
             // start with SUCCESS, unless someone makes it a failure
             setResult(Result.SUCCESS);
@@ -131,14 +133,20 @@ public class Promotion extends AbstractBuild<PromotionProcess,Promotion>
         }
 
         protected void post2(BuildListener listener) throws Exception {
+            getStatus().onPromotionCompleted(Promotion.this);
             if(getResult()== Result.SUCCESS)
                 getStatus().onSuccessfulPromotion(Promotion.this);
-            // persist the updated build record
-            getTarget().save();
+            // persist the updated promotion state of the build
+            DeferredSaver.save(getTarget().getAction(PromotedBuildAction.class));
+            // which in turn updates the history
+            getParent().getParent().getJournal().completed(Promotion.this);
+            PromotionEvents.fire(getResult()==Result.SUCCESS ? PromotionEvents.Type.SUCCEEDED : PromotionEvents.Type.FAILED,
+                    getParent(), getTarget(), Promotion.this);
 
             if (getResult() == Result.SUCCESS) {
                 // we should evaluate any other pending promotions in case
                 // they had a condition on this promotion
+                VerdictCache.invalidate(getTarget().getProject());
                 PromotedBuildAction pba = getTarget().getAction(PromotedBuildAction.class);
 
                 for (PromotionProcess pp : pba.getPendingPromotions()) {
@@ -48,6 +48,36 @@ public abstract class PromotionCondition implements ExtensionPoint, Describable<
         return isMet(build);
     }
 
+    /**
+     * Gives a rough idea of how expensive {@link #isMet(PromotionProcess, AbstractBuild)} is.
+     *
+     * <p>
+     * {@link PromotionProcess} evaluates cheaper conditions first, so that an unmet cheap condition
+     * spares the evaluation of expensive ones.
+     */
+    public Cost getCost() {
+        return Cost.MODERATE;
+    }
+
+    /**
+     * Relative cost of evaluating a {@link PromotionCondition}.
+     */
+    public enum Cost {
+        /**
+         * Only looks at what's already in memory.
+         */
+        CHEAP,
+        /**
+         * Looks at a handful of builds.
+         */
+        MODERATE,
+        /**
+         * Goes through fingerprints or other builds, possibly loading them from disk.
+         * These are candidates for parallel evaluation.
+         */
+        EXPENSIVE
+    }
+
     public PromotionConditionDescriptor getDescriptor() {
         return (PromotionConditionDescriptor)Hudson.getInstance().getDescriptor(getClass());
     }
@@ -0,0 +1,306 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.AbstractBuild;
+import hudson.model.listeners.RunListener;
+import hudson.security.ACL;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates promotion conditions asynchronously, so that {@link RunListener}s
+ * don't keep the executor of a just-completed build busy.
+ *
+ * <p>
+ * Requests for the same build and {@link PromotionProcess} that are still waiting
+ * in the queue are coalesced into one evaluation. A request that comes in while that
+ * evaluation is running makes it run once more afterwards, so that the same build is never
+ * evaluated by the same process concurrently, nor does a late change get missed. The work queue is bounded;
+ * when it is full, the evaluation runs on the calling thread instead of being dropped.
+ *
+ * <p>
+ * The pool size and the queue capacity can be tuned with the
+ * {@code hudson.plugins.promoted_builds.PromotionEvaluator.threads} and
+ * {@code hudson.plugins.promoted_builds.PromotionEvaluator.queueSize} system properties.
+ */
+public final class PromotionEvaluator {
+    private PromotionEvaluator() {}
+
+    private static final int THREADS = Integer.getInteger(PromotionEvaluator.class.getName()+".threads", 2);
+    private static final int QUEUE_SIZE = Integer.getInteger(PromotionEvaluator.class.getName()+".queueSize", 1000);
+
+    /**
+     * Requests that are waiting to be evaluated or being evaluated, keyed by {@link #keyOf(PromotionProcess, AbstractBuild)}.
+     */
+    private static final ConcurrentMap<String,Request> PENDING = new ConcurrentHashMap<String,Request>();
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+            new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Promotion evaluator #"+n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the expensive conditions of a process in parallel. Separate from {@link #EXECUTOR},
+     * as the evaluations running there wait for these.
+     */
+    private static final ThreadPoolExecutor CONDITIONS = new ThreadPoolExecutor(0, THREADS*2,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Promotion condition evaluator #"+n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private static final AtomicLong requested = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static final AtomicLong evaluated = new AtomicLong();
+    private static final AtomicLong totalWaitTime = new AtomicLong();
+    private static final AtomicLong totalEvaluationTime = new AtomicLong();
+    private static final AtomicLong maxEvaluationTime = new AtomicLong();
+
+    /**
+     * Schedules {@link PromotionProcess#considerPromotion2(AbstractBuild)} for the given build.
+     *
+     * @return
+     *      false if an evaluation of the same build by the same process was already pending or running,
+     *      in which case this request is merged into it.
+     */
+    public static boolean schedule(PromotionProcess process, AbstractBuild<?,?> build) {
+        requested.incrementAndGet();
+
+        Request r = new Request(process, build);
+        while (true) {
+            Request existing = PENDING.putIfAbsent(r.key, r);
+            if (existing==null) {
+                EXECUTOR.execute(r);
+                return true;
+            }
+            if (existing.merge()) {
+                coalesced.incrementAndGet();
+                return false;
+            }
+            // it has just finished, and is gone from PENDING by now
+        }
+    }
+
+    /**
+     * Runs the given tasks in parallel and waits for them, giving up as soon as one of them yields null.
+     * Tasks that can't get a thread run on the calling thread. They run with the caller's credentials.
+     *
+     * @return
+     *      null if any of the tasks returned null. Otherwise the results in the order of the tasks.
+     */
+    public static <T> List<T> evaluateAll(List<? extends Callable<T>> tasks) {
+        final Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        CompletionService<T> cs = new ExecutorCompletionService<T>(CONDITIONS);
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        try {
+            for (final Callable<T> task : tasks) {
+                futures.add(cs.submit(new Callable<T>() {
+                    public T call() throws Exception {
+                        Authentication old = SecurityContextHolder.getContext().getAuthentication();
+                        SecurityContextHolder.getContext().setAuthentication(auth);
+                        try {
+                            return task.call();
+                        } finally {
+                            SecurityContextHolder.getContext().setAuthentication(old);
+                        }
+                    }
+                }));
+            }
+
+            for (int i=0; i<futures.size(); i++) {
+                if (cs.take().get()==null)
+                    return null;
+            }
+
+            List<T> r = new ArrayList<T>(futures.size());
+            for (Future<T> f : futures)
+                r.add(f.get());
+            return r;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException)  throw (RuntimeException)t;
+            if (t instanceof Error)             throw (Error)t;
+            throw new RuntimeException(t);
+        } finally {
+            for (Future<T> f : futures)
+                f.cancel(false);
+        }
+    }
+
+    /**
+     * Number of evaluations waiting to be run.
+     */
+    public static int getQueueDepth() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * Number of evaluation requests received so far, including coalesced ones.
+     */
+    public static long getRequestCount() {
+        return requested.get();
+    }
+
+    /**
+     * Number of evaluation requests that were merged into a pending one.
+     */
+    public static long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Number of evaluations performed so far.
+     */
+    public static long getEvaluationCount() {
+        return evaluated.get();
+    }
+
+    /**
+     * Average time in milliseconds a request spent in the queue before it got evaluated.
+     */
+    public static long getAverageWaitTime() {
+        long n = evaluated.get();
+        return n==0 ? 0 : totalWaitTime.get()/n;
+    }
+
+    /**
+     * Average time in milliseconds an evaluation took.
+     */
+    public static long getAverageEvaluationTime() {
+        long n = evaluated.get();
+        return n==0 ? 0 : totalEvaluationTime.get()/n;
+    }
+
+    /**
+     * Longest time in milliseconds an evaluation took.
+     */
+    public static long getMaxEvaluationTime() {
+        return maxEvaluationTime.get();
+    }
+
+    private static String keyOf(PromotionProcess process, AbstractBuild<?,?> build) {
+        return build.getParent().getFullName()+'#'+build.getNumber()+'/'+process.getName();
+    }
+
+    private static final class Request implements Runnable {
+        private final PromotionProcess process;
+        private final AbstractBuild<?,?> build;
+        private final String key;
+        private long queued = System.currentTimeMillis();
+
+        /**
+         * State of the request. Guarded by {@code this}.
+         */
+        private boolean running, again, done;
+
+        Request(PromotionProcess process, AbstractBuild<?,?> build) {
+            this.process = process;
+            this.build = build;
+            this.key = keyOf(process, build);
+        }
+
+        /**
+         * Merges another request for the same key into this one.
+         *
+         * @return
+         *      false if this request is done, and the other one needs to be scheduled on its own.
+         */
+        synchronized boolean merge() {
+            if (done)   return false;
+            // what changed may not have been seen by the evaluation in progress
+            if (running)    again = true;
+            return true;
+        }
+
+        public void run() {
+            synchronized (this) {
+                running = true;
+                again = false;
+            }
+
+            // whatever made us evaluate this may have changed the verdicts
+            process.getVerdicts().invalidate(build.getNumber());
+
+            long start = System.currentTimeMillis();
+            Authentication old = SecurityContextHolder.getContext().getAuthentication();
+            SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
+            try {
+                if (process.considerPromotion2(build)!=null)
+                    LOGGER.fine("Promoted "+build+" via "+process.getName());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to promote "+build+" via "+process.getName(), e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to evaluate the promotion of "+build+" via "+process.getName(), e);
+            } finally {
+                SecurityContextHolder.getContext().setAuthentication(old);
+
+                long end = System.currentTimeMillis();
+                evaluated.incrementAndGet();
+                totalWaitTime.addAndGet(start-queued);
+                totalEvaluationTime.addAndGet(end-start);
+                long d = end-start, max;
+                while (d>(max=maxEvaluationTime.get()) && !maxEvaluationTime.compareAndSet(max,d))
+                    ;
+
+                finish();
+            }
+        }
+
+        /**
+         * Either lets go of the key, or runs once more for the requests that came in meanwhile.
+         */
+        private void finish() {
+            synchronized (this) {
+                running = false;
+                if (!again) {
+                    done = true;
+                    PENDING.remove(key, this);
+                    return;
+                }
+                queued = System.currentTimeMillis();
+            }
+            EXECUTOR.execute(this);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotionEvaluator.class.getName());
+}
@@ -0,0 +1,155 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.AbstractBuild;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the recent promotion lifecycle events in memory, so that clients can wait for them
+ * through {@link PromotedProjectAction#doEvents} instead of polling the promotion pages.
+ *
+ * <p>
+ * Events are kept in a fixed-size ring buffer and numbered with a sequence number that
+ * keeps increasing for the lifetime of the JVM. A client that falls too far behind
+ * loses the oldest events, and is told so.
+ */
+public final class PromotionEvents {
+    private PromotionEvents() {}
+
+    public enum Type {
+        /**
+         * A build qualified for a promotion.
+         */
+        QUALIFIED,
+        /**
+         * A promotion is scheduled.
+         */
+        QUEUED,
+        /**
+         * A promotion started running.
+         */
+        STARTED,
+        SUCCEEDED,
+        FAILED
+    }
+
+    /**
+     * One event.
+     */
+    public static final class Event {
+        /**
+         * Sequence number of this event.
+         */
+        public final long id;
+        public final Type type;
+        /**
+         * Full name of the project whose build is promoted.
+         */
+        public final String job;
+        /**
+         * Name of the {@link PromotionProcess}.
+         */
+        public final String process;
+        /**
+         * Number of the build being promoted.
+         */
+        public final int target;
+        /**
+         * Number of the {@link Promotion}, or 0 if there's none yet.
+         */
+        public final int promotion;
+        public final long timestamp = System.currentTimeMillis();
+
+        Event(long id, Type type, String job, String process, int target, int promotion) {
+            this.id = id;
+            this.type = type;
+            this.job = job;
+            this.process = process;
+            this.target = target;
+            this.promotion = promotion;
+        }
+
+        boolean matches(String job, String process) {
+            return (job==null || job.equals(this.job)) && (process==null || process.equals(this.process));
+        }
+    }
+
+    /**
+     * A batch of events returned by {@link PromotionEvents#await}.
+     */
+    public static final class Page {
+        public final List<Event> events;
+        /**
+         * Sequence number to wait for next.
+         */
+        public final long next;
+        /**
+         * True if some events after the requested ones have already been dropped from the buffer.
+         */
+        public final boolean missed;
+
+        Page(List<Event> events, long next, boolean missed) {
+            this.events = events;
+            this.next = next;
+            this.missed = missed;
+        }
+    }
+
+    private static final Event[] BUFFER = new Event[Integer.getInteger(PromotionEvents.class.getName()+".capacity", 1024)];
+
+    /**
+     * Sequence number of the next event. Guarded by {@link #BUFFER}.
+     */
+    private static long nextId = 1;
+
+    /**
+     * Records an event about the promotion of the given build.
+     */
+    public static void fire(Type type, PromotionProcess process, AbstractBuild<?,?> target, Promotion promotion) {
+        synchronized (BUFFER) {
+            long id = nextId++;
+            BUFFER[(int)(id%BUFFER.length)] = new Event(id, type, target.getParent().getFullName(), process.getName(),
+                    target.getNumber(), promotion!=null ? promotion.getNumber() : 0);
+            BUFFER.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the events from the given sequence number on, waiting for one if there's none yet.
+     *
+     * @param since
+     *      Sequence number of the first event to return. 0 to only return events that happen from now on.
+     * @param job
+     *      If non-null, only events for this project are returned.
+     * @param process
+     *      If non-null, only events for the promotion process of this name are returned.
+     * @param timeout
+     *      How long to wait for an event, in milliseconds.
+     */
+    public static Page await(long since, String job, String process, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+timeout;
+        synchronized (BUFFER) {
+            if (since<=0)
+                since = nextId;
+            while (true) {
+                long oldest = Math.max(1, nextId-BUFFER.length);
+                boolean missed = since<oldest;
+                List<Event> r = new ArrayList<Event>();
+                for (long id=Math.max(since,oldest); id<nextId; id++) {
+                    Event e = BUFFER[(int)(id%BUFFER.length)];
+                    if (e.matches(job,process))
+                        r.add(e);
+                }
+
+                long wait = deadline-System.currentTimeMillis();
+                if (!r.isEmpty() || missed || wait<=0)
+                    return new Page(r, nextId, missed);
+
+                // nothing interesting so far. skip what we've seen and wait for more
+                since = nextId;
+                BUFFER.wait(wait);
+            }
+        }
+    }
+}
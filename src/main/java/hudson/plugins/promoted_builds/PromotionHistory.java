@@ -0,0 +1,521 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.Extension;
+import hudson.model.BallColor;
+import hudson.model.Result;
+import hudson.model.listeners.RunListener;
+import hudson.util.AtomicFileWriter;
+import hudson.util.TextFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only record of the completed {@link Promotion}s of a {@link PromotionProcess},
+ * so that the promotion history can be shown without loading the builds of the owner project
+ * and the promotion records attached to them.
+ *
+ * <p>
+ * Kept in {@code promotions/<process>/history.log}, one line per promotion:
+ * promotion number, target build number, timestamp in milliseconds and result,
+ * separated by spaces. Only as much of the end of the file is read as the queries need.
+ *
+ * <p>
+ * This is an index derived from the {@link PromotionJournal} of the owner project, which is
+ * the source of truth: the journal updates it as it records completions and deletions, and if
+ * the two disagree on the latest promotion, for example after a crash between the two writes,
+ * or if the file is missing, the file is rewritten from the journal.
+ *
+ * <p>
+ * The latest successful promotion is also kept in {@code promotions/<process>/lastSuccessful},
+ * so that it's known without reading the history.
+ */
+public final class PromotionHistory {
+    private final PromotionProcess process;
+
+    /**
+     * Entries read so far by the promotion number, which is a tail of the file. Loaded lazily.
+     */
+    private TreeMap<Integer,Entry> entries;
+
+    /**
+     * Length of the part at the start of the file that hasn't been read yet.
+     */
+    private long unread;
+
+    /**
+     * See {@link #getLastSuccessful()}. {@link #NONE} if there's no such promotion. Loaded lazily.
+     */
+    private Entry lastSuccessful;
+
+    /*package*/ PromotionHistory(PromotionProcess process) {
+        this.process = process;
+    }
+
+    /**
+     * One completed {@link Promotion}.
+     */
+    public static final class Entry {
+        private final int number;
+        private final int target;
+        private final long timestamp;
+        private final Result result;
+
+        Entry(int number, int target, long timestamp, Result result) {
+            this.number = number;
+            this.target = target;
+            this.timestamp = timestamp;
+            this.result = result;
+        }
+
+        Entry(Promotion p, int target) {
+            this(p.getNumber(), target, p.getTimeInMillis(), p.getResult());
+        }
+
+        /**
+         * Number of the {@link Promotion}.
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Number of the promoted build of the owner project.
+         */
+        public int getTargetNumber() {
+            return target;
+        }
+
+        public long getTimeInMillis() {
+            return timestamp;
+        }
+
+        public Calendar getTimestamp() {
+            GregorianCalendar c = new GregorianCalendar();
+            c.setTimeInMillis(timestamp);
+            return c;
+        }
+
+        public Date getTime() {
+            return new Date(timestamp);
+        }
+
+        public Result getResult() {
+            return result;
+        }
+
+        public BallColor getIconColor() {
+            return result!=null ? result.color : BallColor.GREY;
+        }
+
+        /**
+         * Same as {@link hudson.model.Run#getBuildStatusUrl()}.
+         */
+        public String getBuildStatusUrl() {
+            return getIconColor().getImage();
+        }
+
+        @Override
+        public String toString() {
+            return number+" "+target+" "+timestamp+" "+result;
+        }
+
+        static Entry fromString(String line) {
+            StringTokenizer tokens = new StringTokenizer(line);
+            if (tokens.countTokens()!=4)
+                return null;
+            try {
+                return new Entry(Integer.parseInt(tokens.nextToken()), Integer.parseInt(tokens.nextToken()),
+                        Long.parseLong(tokens.nextToken()), Result.fromString(tokens.nextToken()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Gets the latest promotions, newest first.
+     *
+     * @param n
+     *      maximum number of entries to return.
+     */
+    public List<Entry> getLatest(int n) {
+        return getPage(Integer.MAX_VALUE, 0, Long.MAX_VALUE, n);
+    }
+
+    /**
+     * Gets a page of the promotions, newest first.
+     *
+     * @param before
+     *      only promotions whose number is smaller than this are returned.
+     * @param from
+     *      only promotions started at or after this time (in milliseconds) are returned.
+     * @param to
+     *      only promotions started before this time (in milliseconds) are returned.
+     * @param limit
+     *      maximum number of entries to return.
+     */
+    public synchronized List<Entry> getPage(int before, long from, long to, int limit) {
+        load();
+        while (true) {
+            List<Entry> r = new ArrayList<Entry>();
+            Iterator<Entry> itr = entries.headMap(before).descendingMap().values().iterator();
+            while (itr.hasNext() && r.size()<limit) {
+                Entry e = itr.next();
+                // numbers are assigned in the order promotions start
+                if (e.timestamp<from)   break;
+                if (e.timestamp<to)     r.add(e);
+            }
+            if (hasSlack(itr) || !readMore())
+                return r;
+        }
+    }
+
+    /**
+     * Gets the latest successful promotion.
+     *
+     * @return
+     *      null if nothing has been promoted successfully yet.
+     */
+    public synchronized Entry getLastSuccessful() {
+        if (lastSuccessful==null) {
+            File f = getLastSuccessfulFile();
+            try {
+                String s = f.exists() ? new TextFile(f).readTrim() : null;
+                if (s!=null)
+                    lastSuccessful = s.length()==0 ? NONE : Entry.fromString(s);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load "+f, e);
+            }
+            if (lastSuccessful==null) {
+                // not recorded yet, or corrupt
+                setLastSuccessful(findLastSuccessful());
+            }
+        }
+        return lastSuccessful==NONE ? null : lastSuccessful;
+    }
+
+    private void setLastSuccessful(Entry e) {
+        lastSuccessful = e!=null ? e : NONE;
+        try {
+            new TextFile(getLastSuccessfulFile()).write(e!=null ? e.toString() : "");
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Failed to save "+getLastSuccessfulFile(), x);
+        }
+    }
+
+    /**
+     * Looks for the latest successful promotion in the history.
+     */
+    private Entry findLastSuccessful() {
+        load();
+        while (true) {
+            Entry r = null;
+            Iterator<Entry> itr = entries.descendingMap().values().iterator();
+            while (itr.hasNext() && r==null) {
+                Entry e = itr.next();
+                if (e.result==Result.SUCCESS)
+                    r = e;
+            }
+            if (hasSlack(itr) || !readMore())
+                return r;
+        }
+    }
+
+    /**
+     * Gets all the promotions, newest first.
+     */
+    public List<Entry> getAll() {
+        return getLatest(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the latest promotion.
+     *
+     * @return
+     *      null if nothing has been promoted yet.
+     */
+    public Entry getLast() {
+        List<Entry> r = getLatest(1);
+        return r.isEmpty() ? null : r.get(0);
+    }
+
+    /**
+     * Checks if the whole file has been read. For tests.
+     */
+    /*package*/ synchronized boolean isFullyRead() {
+        return entries!=null && unread==0;
+    }
+
+    /**
+     * Lines are appended as promotions complete, so ones that ran at the same time may be out of order.
+     * Checks that the entries read so far go on for a bit past the given point, so that nothing
+     * newer can be in the part of the file not read yet.
+     */
+    private boolean hasSlack(Iterator<Entry> itr) {
+        for (int i=0; i<SLACK; i++) {
+            if (!itr.hasNext())
+                return unread==0;
+            itr.next();
+        }
+        return true;
+    }
+
+    /**
+     * Records a completed promotion. Called by {@link PromotionJournal}.
+     */
+    /*package*/ synchronized void add(Promotion p, int target) throws IOException {
+        load();
+        if (entries.containsKey(p.getNumber()))
+            return;     // already picked up from the journal
+
+        Entry e = new Entry(p, target);
+        entries.put(e.number, e);
+
+        Writer w = new OutputStreamWriter(new FileOutputStream(getFile(),true),"UTF-8");
+        try {
+            w.write(e+"\n");
+        } finally {
+            w.close();
+        }
+
+        if (e.result==Result.SUCCESS) {
+            Entry last = getLastSuccessful();
+            if (last==null || last.number<e.number)
+                setLastSuccessful(e);
+        }
+    }
+
+    /**
+     * Forgets a promotion, because its record is deleted. Called by {@link PromotionJournal}.
+     */
+    /*package*/ synchronized void remove(final int number) throws IOException {
+        load();
+        entries.remove(number);
+        filter(new Filter() {
+            boolean keep(Entry e) {
+                return e.number!=number;
+            }
+        });
+
+        Entry last = getLastSuccessful();
+        if (last!=null && last.number==number)
+            setLastSuccessful(findLastSuccessful());
+    }
+
+    /**
+     * Forgets the promotions of a build of the owner project, because it's deleted.
+     * Called by {@link PromotionJournal}.
+     */
+    /*package*/ synchronized void removeTarget(final int target) throws IOException {
+        load();
+        for (Iterator<Entry> itr = entries.values().iterator(); itr.hasNext(); )
+            if (itr.next().target==target)
+                itr.remove();
+        filter(new Filter() {
+            boolean keep(Entry e) {
+                return e.target!=target;
+            }
+        });
+
+        Entry last = getLastSuccessful();
+        if (last!=null && last.target==target)
+            setLastSuccessful(findLastSuccessful());
+    }
+
+    /**
+     * Forgets what's been loaded, and regenerates the file from the journal.
+     * Called by {@link PromotionJournal} once it's been rebuilt.
+     */
+    /*package*/ synchronized void reset() {
+        entries = null;
+        unread = 0;
+        lastSuccessful = null;
+        getFile().delete();
+        getLastSuccessfulFile().delete();
+    }
+
+    private void load() {
+        if (entries!=null)  return;
+        entries = new TreeMap<Integer,Entry>();
+
+        File f = getFile();
+        if (f.exists()) {
+            try {
+                PromotionJournal.truncatePartialLine(f);
+                unread = f.length();
+                readMore();
+
+                PromotionJournal j = process.getParent().getJournal();
+                if (!j.isComplete())
+                    return;     // it'll reset this once it's done
+                int last = j.getLastCompleted(process.getName());
+                if (entries.isEmpty() ? last==0 : entries.lastKey()==last)
+                    return;
+                LOGGER.info(f+" is out of sync with the journal. Rebuilding it");
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load "+f+". Rebuilding it", e);
+            }
+        }
+        rebuild();
+    }
+
+    /**
+     * Reads the preceding part of the file.
+     *
+     * @return
+     *      false if the whole file has been read already.
+     */
+    private boolean readMore() {
+        if (unread==0)  return false;
+        File f = getFile();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f,"r");
+            try {
+                for (int size=CHUNK; ; size*=2) {
+                    long start = Math.max(0,unread-size);
+                    byte[] buf = new byte[(int)(unread-start)];
+                    raf.seek(start);
+                    raf.readFully(buf);
+
+                    // the first line may have started in the part before
+                    int i = 0;
+                    if (start>0) {
+                        while (i<buf.length && buf[i]!='\n')
+                            i++;
+                        if (i==buf.length)  continue;
+                        i++;
+                    }
+                    for (String line : new String(buf,i,buf.length-i,"UTF-8").split("\n")) {
+                        Entry e = Entry.fromString(line);
+                        if (e!=null && !entries.containsKey(e.number))
+                            entries.put(e.number,e);
+                    }
+                    unread = start+i;
+                    return true;
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read "+f, e);
+            unread = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Reconstructs the history from the journal.
+     */
+    private void rebuild() {
+        PromotionJournal j = process.getParent().getJournal();
+        entries = new TreeMap<Integer,Entry>();
+        for (Entry e : j.getCompleted(process.getName()))
+            entries.put(e.number,e);
+        unread = 0;
+
+        if (!j.isComplete())
+            return;     // don't persist a partial history
+        File f = getFile();
+        try {
+            AtomicFileWriter w = new AtomicFileWriter(f);
+            try {
+                for (Entry e : entries.values())
+                    w.write(e+"\n");
+                w.commit();
+            } finally {
+                w.abort();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save "+f, e);
+        }
+        setLastSuccessful(findLastSuccessful());
+    }
+
+    private static abstract class Filter {
+        abstract boolean keep(Entry e);
+    }
+
+    /**
+     * Rewrites the file without the entries the filter rejects, if there are any.
+     */
+    private void filter(Filter filter) throws IOException {
+        File f = getFile();
+        if (!f.exists())    return;
+
+        boolean changed = false;
+        AtomicFileWriter w = new AtomicFileWriter(f);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f),"UTF-8"));
+            try {
+                String line;
+                while ((line=in.readLine())!=null) {
+                    Entry e = Entry.fromString(line);
+                    if (e!=null && filter.keep(e))  w.write(line+"\n");
+                    else                            changed = true;
+                }
+            } finally {
+                in.close();
+            }
+            if (changed)
+                w.commit();
+        } finally {
+            w.abort();
+        }
+    }
+
+    private File getFile() {
+        return new File(process.getRootDir(), "history.log");
+    }
+
+    private File getLastSuccessfulFile() {
+        return new File(process.getRootDir(), "lastSuccessful");
+    }
+
+    /**
+     * Removes deleted promotions from the history.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Promotion> {
+        public RunListenerImpl() {
+            super(Promotion.class);
+        }
+
+        @Override
+        public void onDeleted(Promotion p) {
+            // which in turn updates the history
+            p.getParent().getParent().getJournal().deleted(p);
+        }
+    }
+
+    private static final Entry NONE = new Entry(0, 0, 0, null);
+
+    /**
+     * Bytes read at a time from the end of the file.
+     */
+    private static final int CHUNK = 8192;
+
+    /**
+     * Number of entries read past the ones returned. See {@link #hasSlack(Iterator)}.
+     */
+    private static final int SLACK = 16;
+
+    private static final Logger LOGGER = Logger.getLogger(PromotionHistory.class.getName());
+}
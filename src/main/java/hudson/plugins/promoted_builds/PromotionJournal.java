@@ -0,0 +1,573 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of the promotion lifecycle events of one project, so that
+ * the promotion history, the latest promoted builds and the promotion statistics
+ * can be answered without loading the builds.
+ *
+ * <p>
+ * Kept in {@code promotions/journal.log}, one record per line. Every record has the same fields,
+ * separated by a space: timestamp in milliseconds, {@link Type}, number of the build of
+ * the owner project, number of the {@link Promotion} (0 if not applicable), result
+ * ({@code -} if not applicable) and the name of the {@link PromotionProcess},
+ * which comes last as it may contain spaces. A record is appended with a single write,
+ * so a crash leaves at most a partial last line, which is ignored.
+ *
+ * <p>
+ * Once the journal grows past {@link #COMPACT_THRESHOLD} records, the current state is
+ * written to {@code promotions/journal.snapshot} in the same format and the journal starts
+ * over. Replaying a record twice has no effect, so a crash in the middle of this is harmless.
+ *
+ * <p>
+ * The snapshot exists as soon as the journal is complete. If it doesn't, for example because the
+ * promotions were made by an older version of this plugin, the journal is reconstructed from
+ * the build records in the background, and until that's done, only what happened since is known.
+ *
+ * @see JobPropertyImpl#getJournal()
+ */
+public final class PromotionJournal {
+    private final JobPropertyImpl owner;
+
+    /**
+     * State of each process by its name. Loaded lazily.
+     */
+    private Map<String,ProcessState> processes;
+
+    /**
+     * Number of records in the journal file.
+     */
+    private int records;
+
+    /**
+     * True while {@link #rebuild()} is reconstructing the state from the build records.
+     */
+    private boolean rebuilding;
+
+    /*package*/ PromotionJournal(JobPropertyImpl owner) {
+        this.owner = owner;
+    }
+
+    public enum Type {
+        /**
+         * A build qualified for a promotion.
+         */
+        QUALIFIED,
+        /**
+         * A promotion started running.
+         */
+        STARTED,
+        /**
+         * A promotion completed, with the given result.
+         */
+        COMPLETED,
+        /**
+         * The build of the owner project, or the promotion if one is given, was deleted.
+         */
+        DELETED
+    }
+
+    /**
+     * One {@link Promotion} of a build.
+     */
+    private static final class Attempt {
+        final int target;
+        long started;
+        long completed;
+        Result result;
+
+        Attempt(int target) {
+            this.target = target;
+        }
+    }
+
+    /**
+     * What's known about one process.
+     */
+    private static final class ProcessState {
+        /**
+         * When each build qualified, by the build number.
+         */
+        final TreeMap<Integer,Long> qualified = new TreeMap<Integer,Long>();
+        /**
+         * By the promotion number.
+         */
+        final TreeMap<Integer,Attempt> attempts = new TreeMap<Integer,Attempt>();
+    }
+
+    /**
+     * Promotion counts of a process, as of the time it's requested.
+     */
+    public static final class Statistics {
+        /**
+         * Number of builds qualified for the promotion.
+         */
+        public final int qualified;
+        /**
+         * Number of promotions run, including those still running.
+         */
+        public final int attempts;
+        public final int succeeded;
+        public final int failed;
+        /**
+         * Average duration of the completed promotions in milliseconds.
+         */
+        public final long averageDuration;
+
+        Statistics(int qualified, int attempts, int succeeded, int failed, long averageDuration) {
+            this.qualified = qualified;
+            this.attempts = attempts;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.averageDuration = averageDuration;
+        }
+    }
+
+    /**
+     * Records that the build qualified for the promotion.
+     */
+    /*package*/ void qualified(PromotionProcess process, AbstractBuild<?,?> build) {
+        append(System.currentTimeMillis(), Type.QUALIFIED, build.getNumber(), 0, null, process.getName());
+    }
+
+    /**
+     * Records that the promotion started.
+     */
+    /*package*/ void started(Promotion p) {
+        PromotionTargetAction pta = p.getAction(PromotionTargetAction.class);
+        if (pta==null)  return;
+        append(p.getTimeInMillis(), Type.STARTED, pta.getNumber(), p.getNumber(), null, p.getParent().getName());
+    }
+
+    /**
+     * Records that the promotion completed, and adds it to the {@link PromotionHistory}.
+     */
+    /*package*/ void completed(Promotion p) {
+        PromotionTargetAction pta = p.getAction(PromotionTargetAction.class);
+        if (pta==null)  return;
+        append(System.currentTimeMillis(), Type.COMPLETED, pta.getNumber(), p.getNumber(), p.getResult(), p.getParent().getName());
+        // outside the lock, as the history calls back into the journal when it rebuilds itself
+        try {
+            p.getParent().getHistory().add(p, pta.getNumber());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to add "+p+" to the promotion history", e);
+        }
+    }
+
+    /**
+     * Records that the promotion record was deleted, and removes it from the {@link PromotionHistory}.
+     */
+    /*package*/ void deleted(Promotion p) {
+        append(System.currentTimeMillis(), Type.DELETED, 0, p.getNumber(), null, p.getParent().getName());
+        try {
+            p.getParent().getHistory().remove(p.getNumber());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove "+p+" from the promotion history", e);
+        }
+    }
+
+    /**
+     * Records that the build of the owner project was deleted, along with its promotions,
+     * and removes them from the {@link PromotionHistory} of each process.
+     */
+    /*package*/ void deleted(AbstractBuild<?,?> build) {
+        // applies to all processes
+        append(System.currentTimeMillis(), Type.DELETED, build.getNumber(), 0, null, "");
+        for (PromotionProcess p : owner.getItems()) {
+            try {
+                p.getHistory().removeTarget(build.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove "+build+" from the promotion history of "+p, e);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of the latest build qualified for the given process.
+     *
+     * @return
+     *      0 if there's no such build.
+     */
+    public synchronized int getLastQualified(String process) {
+        ProcessState s = load().get(process);
+        return s==null || s.qualified.isEmpty() ? 0 : s.qualified.lastKey();
+    }
+
+    /**
+     * Gets the completed promotions of the given process, newest first,
+     * in the same form as {@link PromotionHistory}.
+     */
+    public synchronized List<PromotionHistory.Entry> getCompleted(String process) {
+        List<PromotionHistory.Entry> r = new ArrayList<PromotionHistory.Entry>();
+        ProcessState s = load().get(process);
+        if (s==null)    return r;
+        for (Map.Entry<Integer,Attempt> e : s.attempts.descendingMap().entrySet()) {
+            Attempt a = e.getValue();
+            if (a.result!=null)
+                r.add(new PromotionHistory.Entry(e.getKey(), a.target, a.started, a.result));
+        }
+        return r;
+    }
+
+    /**
+     * Gets the number of the latest completed promotion of the given process.
+     *
+     * @return
+     *      0 if there's no such promotion.
+     */
+    public synchronized int getLastCompleted(String process) {
+        ProcessState s = load().get(process);
+        if (s==null)    return 0;
+        for (Map.Entry<Integer,Attempt> e : s.attempts.descendingMap().entrySet())
+            if (e.getValue().result!=null)
+                return e.getKey();
+        return 0;
+    }
+
+    /**
+     * Checks if the journal knows about everything, as opposed to only what happened
+     * since it started to be reconstructed from the build records.
+     */
+    public synchronized boolean isComplete() {
+        load();
+        return !rebuilding;
+    }
+
+    public synchronized Statistics getStatistics(String process) {
+        ProcessState s = load().get(process);
+        if (s==null)    return new Statistics(0,0,0,0,0);
+
+        int succeeded=0, failed=0, completed=0;
+        long total=0;
+        for (Attempt a : s.attempts.values()) {
+            if (a.result==null) continue;
+            if (a.result==Result.SUCCESS)   succeeded++;
+            else                            failed++;
+            if (a.started>0) {
+                completed++;
+                total += a.completed-a.started;
+            }
+        }
+        return new Statistics(s.qualified.size(), s.attempts.size(), succeeded, failed, completed==0 ? 0 : total/completed);
+    }
+
+    private synchronized void append(long timestamp, Type type, int target, int promotion, Result result, String process) {
+        load();
+        String line = format(timestamp, type, target, promotion, result, process);
+        apply(processes, line);
+        try {
+            owner.getRootDir().mkdirs();
+            FileOutputStream out = new FileOutputStream(getJournalFile(),true);
+            try {
+                // one write, so that concurrent readers and crashes never see half a record followed by another
+                out.write(line.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            // while rebuilding, the journal is all there is, and it's needed to finish the rebuild
+            if (++records >= COMPACT_THRESHOLD && !rebuilding)
+                compact();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write to "+getJournalFile(), e);
+        }
+    }
+
+    private static String format(long timestamp, Type type, int target, int promotion, Result result, String process) {
+        return timestamp+" "+type+" "+target+" "+promotion+" "+(result!=null ? result.toString() : "-")+" "+process+"\n";
+    }
+
+    /**
+     * Updates the state with one record.
+     *
+     * @return
+     *      false if the record is malformed.
+     */
+    private static boolean apply(Map<String,ProcessState> processes, String line) {
+        String[] f = line.split(" ",6);
+        if (f.length!=6)    return false;
+        long timestamp;
+        Type type;
+        int target, promotion;
+        try {
+            timestamp = Long.parseLong(f[0]);
+            type = Type.valueOf(f[1]);
+            target = Integer.parseInt(f[2]);
+            promotion = Integer.parseInt(f[3]);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        String process = f[5].trim();
+
+        if (type==Type.DELETED && process.length()==0) {
+            for (ProcessState s : processes.values())
+                removeBuild(s, target);
+            return true;
+        }
+
+        ProcessState s = processes.get(process);
+        if (s==null)
+            processes.put(process, s=new ProcessState());
+
+        Attempt a;
+        switch (type) {
+        case QUALIFIED:
+            if (!s.qualified.containsKey(target))
+                s.qualified.put(target, timestamp);
+            break;
+        case STARTED:
+            a = attempt(s, promotion, target);
+            a.started = timestamp;
+            break;
+        case COMPLETED:
+            a = attempt(s, promotion, target);
+            a.completed = timestamp;
+            a.result = Result.fromString(f[4]);
+            break;
+        case DELETED:
+            if (promotion!=0)   s.attempts.remove(promotion);
+            else                removeBuild(s, target);
+            break;
+        }
+        return true;
+    }
+
+    private static Attempt attempt(ProcessState s, int promotion, int target) {
+        Attempt a = s.attempts.get(promotion);
+        if (a==null)
+            s.attempts.put(promotion, a=new Attempt(target));
+        return a;
+    }
+
+    private static void removeBuild(ProcessState s, int target) {
+        s.qualified.remove(target);
+        for (Iterator<Attempt> itr = s.attempts.values().iterator(); itr.hasNext(); )
+            if (itr.next().target==target)
+                itr.remove();
+    }
+
+    private Map<String,ProcessState> load() {
+        if (processes!=null)    return processes;
+        processes = new HashMap<String,ProcessState>();
+
+        File snapshot = getSnapshotFile(), journal = getJournalFile();
+        try {
+            replay(processes, snapshot);
+            records = replay(processes, journal);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load "+journal+". Rebuilding it", e);
+            processes.clear();
+            records = 0;
+            startRebuild();
+            return processes;
+        }
+        if (!snapshot.exists())
+            startRebuild();
+        return processes;
+    }
+
+    /**
+     * Called as the owner project is loaded, so that a journal that needs to be reconstructed
+     * is done so right away, rather than when it's first asked for.
+     */
+    /*package*/ synchronized void checkSnapshot() {
+        if (processes==null && !getSnapshotFile().exists())
+            load();
+    }
+
+    /**
+     * Applies all the records of the given file, if it exists.
+     * A partially written last line is dropped, so that the next record doesn't get appended to it.
+     *
+     * @return
+     *      number of records read.
+     */
+    private static int replay(Map<String,ProcessState> processes, File f) throws IOException {
+        if (!f.exists())    return 0;
+        // before reading, as a torn record may still look like a valid one, only with a shorter process name
+        truncatePartialLine(f);
+        int n = 0;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f),"UTF-8"));
+        try {
+            String line;
+            while ((line=in.readLine())!=null) {
+                if (apply(processes, line))    n++;
+            }
+        } finally {
+            in.close();
+        }
+        return n;
+    }
+
+    /**
+     * Cuts off the last line of the file if it doesn't end with a newline.
+     */
+    /*package*/ static void truncatePartialLine(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f,"rw");
+        try {
+            long len = raf.length(), end = len;
+            for (; end>0; end--) {
+                raf.seek(end-1);
+                if (raf.read()=='\n')  break;
+            }
+            if (end<len)
+                raf.setLength(end);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void startRebuild() {
+        rebuilding = true;
+        REBUILDER.submit(new Runnable() {
+            public void run() {
+                rebuild();
+            }
+        });
+    }
+
+    /**
+     * Reconstructs the state from the build records, and writes it as a snapshot.
+     *
+     * <p>
+     * This loads all the builds of the owner project and all the promotions, so it's done
+     * without holding the lock of the journal or of any process. What's been recorded in the mean time
+     * is in the journal file, which is replayed on top once the build records are read.
+     */
+    private void rebuild() {
+        long start = System.currentTimeMillis();
+        Map<String,ProcessState> state = new HashMap<String,ProcessState>();
+        try {
+            for (AbstractBuild<?,?> b : owner.getOwner().getBuilds()) {
+                PromotedBuildAction a = b.getAction(PromotedBuildAction.class);
+                if (a==null)    continue;
+                for (Status s : a.getPromotions())
+                    apply(state, format(s.timestamp.getTimeInMillis(), Type.QUALIFIED, b.getNumber(), 0, null, s.name));
+            }
+            for (PromotionProcess p : owner.getItems()) {
+                for (Promotion pr : p.getBuilds()) {
+                    PromotionTargetAction pta = pr.getAction(PromotionTargetAction.class);
+                    if (pta==null)  continue;
+                    apply(state, format(pr.getTimeInMillis(), Type.STARTED, pta.getNumber(), pr.getNumber(), null, p.getName()));
+                    if (!pr.isBuilding())
+                        apply(state, format(pr.getTimeInMillis()+pr.getDuration(), Type.COMPLETED, pta.getNumber(), pr.getNumber(), pr.getResult(), p.getName()));
+                }
+            }
+        } catch (RuntimeException e) {
+            // try again at the next startup
+            LOGGER.log(Level.WARNING, "Failed to rebuild the promotion journal of "+owner.getOwner().getFullName(), e);
+            synchronized (this) {
+                rebuilding = false;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                replay(state, getJournalFile());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load "+getJournalFile(), e);
+            }
+            processes = state;
+            rebuilding = false;
+            try {
+                compact();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save "+getSnapshotFile(), e);
+            }
+        }
+        // the histories derive from the journal
+        for (PromotionProcess p : owner.getItems())
+            p.getHistory().reset();
+        LOGGER.fine("Rebuilt the promotion journal of "+owner.getOwner().getFullName()+" in "+(System.currentTimeMillis()-start)+"ms");
+    }
+
+    /**
+     * Writes the current state to the snapshot and starts a new journal.
+     */
+    private void compact() throws IOException {
+        owner.getRootDir().mkdirs();
+        AtomicFileWriter w = new AtomicFileWriter(getSnapshotFile());
+        try {
+            for (Map.Entry<String,ProcessState> e : processes.entrySet()) {
+                String process = e.getKey();
+                ProcessState s = e.getValue();
+                for (Map.Entry<Integer,Long> q : s.qualified.entrySet())
+                    w.write(format(q.getValue(), Type.QUALIFIED, q.getKey(), 0, null, process));
+                for (Map.Entry<Integer,Attempt> a : s.attempts.entrySet()) {
+                    Attempt at = a.getValue();
+                    w.write(format(at.started, Type.STARTED, at.target, a.getKey(), null, process));
+                    if (at.result!=null)
+                        w.write(format(at.completed, Type.COMPLETED, at.target, a.getKey(), at.result, process));
+                }
+            }
+            w.commit();
+        } finally {
+            w.abort();
+        }
+
+        // everything in the journal is in the snapshot now
+        File f = getJournalFile();
+        if (f.exists() && !f.delete())
+            throw new IOException("Failed to delete "+f);
+        records = 0;
+    }
+
+    private File getJournalFile() {
+        return new File(owner.getRootDir(), "journal.log");
+    }
+
+    private File getSnapshotFile() {
+        return new File(owner.getRootDir(), "journal.snapshot");
+    }
+
+    /**
+     * Number of records the journal is allowed to grow to before it's compacted into the snapshot.
+     * A tunable, set with the {@code hudson.plugins.promoted_builds.PromotionJournal.compactThreshold}
+     * system property. Smaller values mean less to replay at startup, but rewriting the snapshot more often.
+     */
+    public static int COMPACT_THRESHOLD = Integer.getInteger(PromotionJournal.class.getName()+".compactThreshold", 1000);
+
+    /**
+     * Rebuilds the journals one at a time, so that upgrading an instance with many jobs doesn't
+     * compete with the startup for the disk, nor hold up the loading of the promotion processes.
+     */
+    private static final ThreadPoolExecutor REBUILDER = new ThreadPoolExecutor(1, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Promotion journal rebuilder");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+
+    static {
+        REBUILDER.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotionJournal.class.getName());
+}
@@ -0,0 +1,95 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+/**
+ * Exposes the latest promotions of all the jobs at {@code /promotions/}, as JSON,
+ * so that dashboards don't need to ask each job separately.
+ *
+ * <p>
+ * For every job with promotion processes, this lists the active processes with the build that
+ * {@link PromotionProcess#asPermalink() their permalink} points to, and the latest successful promotion.
+ * Both are pointers that each process keeps up to date as promotions happen,
+ * so no build history is scanned. Requests made while the processes are being loaded
+ * at startup wait for them, though.
+ *
+ * @see PromotionProcess#getLastPromotedNumber()
+ * @see PromotionHistory#getLastSuccessful()
+ */
+@Extension
+public class PromotionMatrix implements RootAction {
+    public String getIconFileName() {
+        return null;    // not shown in the side panel
+    }
+
+    public String getDisplayName() {
+        return "Promotions";
+    }
+
+    public String getUrlName() {
+        return "promotions";
+    }
+
+    /**
+     * Supported query parameters are {@code prefix}, to only list jobs whose full name starts with it,
+     * and {@code folder}, to only list jobs inside the folder of that full name.
+     */
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        String prefix = req.getParameter("prefix");
+        String folder = req.getParameter("folder");
+        if (folder!=null && !folder.endsWith("/"))
+            folder += '/';
+
+        JSONArray jobs = new JSONArray();
+        // only lists what the current user can read
+        for (AbstractProject<?,?> job : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            String name = job.getFullName();
+            if (prefix!=null && !name.startsWith(prefix))   continue;
+            if (folder!=null && !name.startsWith(folder))   continue;
+            JobPropertyImpl jp = job.getProperty(JobPropertyImpl.class);
+            if (jp==null)   continue;
+
+            JSONArray processes = new JSONArray();
+            for (PromotionProcess p : jp.getActiveItems()) {
+                int permalink = p.getLastPromotedNumber();
+                JSONObject o = new JSONObject();
+                o.put("name", p.getName());
+                o.put("permalink", permalink>0 ? (Object)permalink : JSONNull.getInstance());
+
+                PromotionHistory.Entry e = p.getHistory().getLastSuccessful();
+                if (e!=null) {
+                    JSONObject last = new JSONObject();
+                    last.put("build", e.getTargetNumber());
+                    last.put("promotion", e.getNumber());
+                    last.put("timestamp", e.getTimeInMillis());
+                    o.put("lastPromoted", last);
+                } else {
+                    o.put("lastPromoted", JSONNull.getInstance());
+                }
+                processes.add(o);
+            }
+
+            JSONObject o = new JSONObject();
+            o.put("name", name);
+            o.put("processes", processes);
+            jobs.add(o);
+        }
+
+        JSONObject r = new JSONObject();
+        r.put("jobs", jobs);
+        rsp.setContentType("application/json;charset=UTF-8");
+        r.write(rsp.getWriter());
+        rsp.getWriter().flush();
+    }
+}
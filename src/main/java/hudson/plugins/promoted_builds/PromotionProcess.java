@@ -1,5 +1,6 @@
 package hudson.plugins.promoted_builds;
 
+import hudson.Extension;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -10,6 +11,8 @@ import hudson.model.DependencyGraph;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleProject;
 import hudson.model.Hudson;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
 import hudson.model.JDK;
 import hudson.model.Job;
 import hudson.model.Label;
@@ -18,22 +21,32 @@ import hudson.model.PermalinkProjectAction.Permalink;
 import hudson.model.Queue.Item;
 import hudson.model.Run;
 import hudson.model.Saveable;
+import hudson.model.TaskListener;
 import hudson.model.labels.LabelAtom;
 import hudson.model.labels.LabelExpression;
+import hudson.model.listeners.RunListener;
 import hudson.tasks.BuildStep;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.tasks.Publisher;
 import hudson.util.DescribableList;
 import hudson.util.RunList;
+import hudson.util.TextFile;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.antlr.runtime.RecognitionException;
 
@@ -44,11 +57,18 @@ import org.antlr.runtime.RecognitionException;
  * @author Juan Pablo Proverbio
  */
 public final class PromotionProcess extends AbstractProject<PromotionProcess,Promotion> implements Saveable {
-	/**
-	 * This object is used to store the builds of the last promotion process
-	 */
-	public ArrayList lastPromotedBuilds;
-	
+    /**
+     * @deprecated as of 2.4-h-4
+     *      Kept only to read the old data. See {@link #getLastPromotedBuilds()}.
+     */
+    private ArrayList lastPromotedBuilds;
+
+    /**
+     * Numbers of the builds of the last promotion process, persisted in {@link #getLastPromotedBuildsFile()}.
+     * Loaded lazily.
+     */
+    private transient volatile BuildNumberSet lastPromotedBuildNumbers;
+
     /**
      * {@link PromotionCondition}s. All have to be met for a build to be promoted.
      */
@@ -68,47 +88,141 @@ public final class PromotionProcess extends AbstractProject<PromotionProcess,Pro
     
     private List<BuildStep> buildSteps = new ArrayList<BuildStep>();
 
+    private transient volatile VerdictCache verdicts;
+
+    /**
+     * True for the throwaway instance {@link #configure(StaplerRequest, JSONObject)} builds the submitted
+     * configuration into. It must never be saved, as it shares the directory of the real one.
+     */
+    private transient boolean scratch;
+
+    private transient volatile PromotionHistory history;
+
+    /**
+     * Numbers of the builds of the owner project whose promotions are in the queue,
+     * to the {@link Future}s of those promotions. Loaded lazily by {@link #getQueued()}.
+     */
+    private transient volatile ConcurrentMap<Integer,Future<Promotion>> queued;
+
+    /**
+     * See {@link #getLastPromotedNumber()}. Persisted in {@link #getLastPromotedFile()}. Loaded lazily.
+     */
+    private transient volatile Integer lastPromoted;
+
     /*package*/ PromotionProcess(JobPropertyImpl property, String name) {
         super(property, name);
     }
 
     /*package*/ void configure(StaplerRequest req, JSONObject c) throws Descriptor.FormException, IOException {
-        // apply configuration
-        conditions.rebuild(req,c, PromotionCondition.all());
+        // build the submitted configuration aside, so that a bad form leaves this process intact
+        PromotionProcess submitted = new PromotionProcess(getParent(), getName());
+        submitted.scratch = true;
+        submitted.conditions.rebuild(req,c, PromotionCondition.all());
 
-        buildSteps = (List)Descriptor.newInstancesFromHeteroList(
+        submitted.buildSteps = (List)Descriptor.newInstancesFromHeteroList(
                 req, c, "buildStep", (List) PromotionProcess.getAll());
-        icon = c.getString("icon");
+        submitted.icon = c.getString("icon");
         if (c.has("hasAssignedLabel")) {
             JSONObject j = c.getJSONObject("hasAssignedLabel");
-            assignedLabel = Util.fixEmptyAndTrim(j.getString("labelString"));
+            submitted.assignedLabel = Util.fixEmptyAndTrim(j.getString("labelString"));
         } else {
-            assignedLabel = null;
+            submitted.assignedLabel = null;
         }
-        
-        //Irrespective of parent allowSave setting, force save
-        boolean allowSave = isAllowSave();
-        try {
-            setAllowSave(true);
-            save();
-        } finally {
-            setAllowSave(allowSave);
+
+        synchronized (this) {
+            // compare with what this process is now, however it got there
+            if (submitted.getConfiguredState().equals(getConfiguredState()))
+                return;     // nothing to do
+
+            buildSteps = submitted.buildSteps;
+            icon = submitted.icon;
+            assignedLabel = submitted.assignedLabel;
+
+            //Irrespective of parent allowSave setting, force save
+            boolean allowSave = isAllowSave();
+            try {
+                setAllowSave(true);
+                // this saves the whole process, so it goes last
+                conditions.replaceBy(submitted.conditions.toList());
+            } finally {
+                setAllowSave(allowSave);
+            }
         }
     }
+
+    /**
+     * Serialized form of the part of the configuration that {@link #configure(StaplerRequest, JSONObject)} sets.
+     */
+    private String getConfiguredState() {
+        return Items.XSTREAM.toXML(new Object[] {conditions.toList(), buildSteps, icon, assignedLabel});
+    }
     
     
     
+    @Override
+    public void onLoad(ItemGroup<? extends hudson.model.Item> parent, String name) throws IOException {
+        super.onLoad(parent, name);
+
+        if (lastPromotedBuilds!=null) {
+            // migrate from the old format, which used to keep entire builds in config.xml.
+            // if the new file is already there, the old data is stale
+            if (!getLastPromotedBuildsFile().exists()) {
+                List<Integer> numbers = new ArrayList<Integer>();
+                for (Object o : lastPromotedBuilds)
+                    if (o instanceof Run)
+                        numbers.add(((Run)o).getNumber());
+                int[] a = new int[numbers.size()];
+                for (int i=0; i<a.length; i++)
+                    a[i] = numbers.get(i);
+                setLastPromotedBuilds(BuildNumberSet.of(a));
+            }
+            lastPromotedBuilds = null;
+            save();
+        }
+    }
+
     /**
-     * This object contains the builds of the last execution of the promote process
-     * @return RunList<?> lastPromotedBuilds
+     * Numbers of the builds used by the last execution of this promotion process,
+     * as recorded by {@link hudson.plugins.promoted_builds.conditions.BuildQuantityCondition}.
+     *
+     * @return
+     *      null if never recorded.
      */
-	public ArrayList getLastPromotedBuilds() {
-		return lastPromotedBuilds;
-	}
+    public BuildNumberSet getLastPromotedBuilds() {
+        BuildNumberSet s = lastPromotedBuildNumbers;
+        if (s==null) {
+            synchronized (this) {
+                if (lastPromotedBuildNumbers==null) {
+                    try {
+                        lastPromotedBuildNumbers = BuildNumberSet.read(getLastPromotedBuildsFile());
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load "+getLastPromotedBuildsFile(), e);
+                    }
+                    if (lastPromotedBuildNumbers==null)
+                        lastPromotedBuildNumbers = NOT_RECORDED;
+                }
+                s = lastPromotedBuildNumbers;
+            }
+        }
+        return s==NOT_RECORDED ? null : s;
+    }
 
-	public void setLastPromotedBuilds(ArrayList lastPromotedBuilds) {
-		this.lastPromotedBuilds = lastPromotedBuilds;
-	}
+    public synchronized void setLastPromotedBuilds(BuildNumberSet builds) throws IOException {
+        if (builds.equals(getLastPromotedBuilds()))
+            return;
+        lastPromotedBuildNumbers = builds;
+        builds.write(getLastPromotedBuildsFile());
+    }
+
+    private File getLastPromotedBuildsFile() {
+        return new File(getRootDir(), "lastPromotedBuilds");
+    }
+
+    /**
+     * Marks {@link #lastPromotedBuildNumbers} as loaded but absent.
+     * Compared by identity, so it's distinct from {@link BuildNumberSet#EMPTY}.
+     */
+    private static final BuildNumberSet NOT_RECORDED = BuildNumberSet.of();
 
 	/**
      * Returns the root project value.
@@ -125,6 +239,45 @@ public final class PromotionProcess extends AbstractProject<PromotionProcess,Pro
         return (JobPropertyImpl)super.getParent();
     }
 
+    @Override
+    public synchronized void save() throws IOException {
+        if (scratch)    return;
+        super.save();
+        // conditions may have changed, e.g. through DescribableList modification
+        getVerdicts().invalidate();
+        getParent().onProcessChanged(this);
+    }
+
+    /**
+     * Gets the cache of the verdicts of {@link #conditions}.
+     */
+    public VerdictCache getVerdicts() {
+        VerdictCache v = verdicts;
+        if (v==null) {
+            synchronized (this) {
+                if (verdicts==null)
+                    verdicts = new VerdictCache();
+                v = verdicts;
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Gets the history of the promotions made by this process.
+     */
+    public PromotionHistory getHistory() {
+        PromotionHistory h = history;
+        if (h==null) {
+            synchronized (this) {
+                if (history==null)
+                    history = new PromotionHistory(this);
+                h = history;
+            }
+        }
+        return h;
+    }
+
     /**
      * Gets the owner {@link AbstractProject} that configured {@link JobPropertyImpl} as
      * a job property.
@@ -231,7 +384,7 @@ public final class PromotionProcess extends AbstractProject<PromotionProcess,Pro
     public List<PromotionBadge> getMetQualifications(AbstractBuild<?,?> build) {
         List<PromotionBadge> badges = new ArrayList<PromotionBadge>();
         for (PromotionCondition cond : conditions) {
-            PromotionBadge b = cond.isMet(this, build);
+            PromotionBadge b = getVerdicts().isMet(this, cond, build);
 
             if (b != null)
                 badges.add(b);
@@ -246,7 +399,7 @@ public final class PromotionProcess extends AbstractProject<PromotionProcess,Pro
         List<PromotionCondition> unmetConditions = new ArrayList<PromotionCondition>();
 
         for (PromotionCondition cond : conditions) {
-            if (cond.isMet(this, build) == null)
+            if (getVerdicts().isMet(this, cond, build) == null)
                 unmetConditions.add(cond);
         }
 
@@ -260,15 +413,56 @@ public final class PromotionProcess extends AbstractProject<PromotionProcess,Pro
      *      null if promotion conditions are not met.
      *      otherwise returns a list of badges that record how the promotion happened.
      */
-    public Status isMet(AbstractBuild<?,?> build) {
-        List<PromotionBadge> badges = new ArrayList<PromotionBadge>();
-        for (PromotionCondition cond : conditions) {
-            PromotionBadge b = cond.isMet(this, build);
-            if(b==null)
+    public Status isMet(final AbstractBuild<?,?> build) {
+        final List<PromotionCondition> conds = new ArrayList<PromotionCondition>();
+        for (PromotionCondition cond : conditions)
+            conds.add(cond);
+
+        // evaluate cheaper conditions first, so that an unmet one spares us the expensive ones
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i=0; i<conds.size(); i++)
+            order.add(i);
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return conds.get(o1).getCost().compareTo(conds.get(o2).getCost());
+            }
+        });
+
+        PromotionBadge[] badges = new PromotionBadge[conds.size()];
+        List<Integer> expensive = new ArrayList<Integer>();
+        for (int i : order) {
+            PromotionCondition cond = conds.get(i);
+            if (PARALLEL_CONDITIONS && cond.getCost()==PromotionCondition.Cost.EXPENSIVE) {
+                expensive.add(i);   // these come last, and are evaluated together below
+                continue;
+            }
+            badges[i] = getVerdicts().isMet(this, cond, build);
+            if(badges[i]==null)
+                return null;
+        }
+
+        if (expensive.size()==1) {
+            int i = expensive.get(0);
+            badges[i] = getVerdicts().isMet(this, conds.get(i), build);
+            if(badges[i]==null)
                 return null;
-            badges.add(b);
+        } else if (!expensive.isEmpty()) {
+            List<Callable<PromotionBadge>> tasks = new ArrayList<Callable<PromotionBadge>>();
+            for (final int i : expensive) {
+                tasks.add(new Callable<PromotionBadge>() {
+                    public PromotionBadge call() {
+                        return getVerdicts().isMet(PromotionProcess.this, conds.get(i), build);
+                    }
+                });
+            }
+            List<PromotionBadge> r = PromotionEvaluator.evaluateAll(tasks);
+            if (r==null)
+                return null;
+            for (int k=0; k<expensive.size(); k++)
+                badges[expensive.get(k)] = r.get(k);
         }
-        return new Status(this,badges);
+
+        return new Status(this,Arrays.asList(badges));
     }
 
     /**
@@ -322,17 +516,16 @@ public final class PromotionProcess extends AbstractProject<PromotionProcess,Pro
      * @param cause
      *      Why the build is promoted?
      * @return
-     *      Future to track the completion of the promotion.
+     *      Future to track the completion of the promotion, or null if the build
+     *      has already qualified for this promotion.
      */
     public Future<Promotion> promote2(AbstractBuild<?,?> build, Cause cause, Status qualification) throws IOException {
-        PromotedBuildAction a = build.getAction(PromotedBuildAction.class);
         // build is qualified for a promotion.
-        if(a!=null) {
-            a.add(qualification);
-        } else {
-            build.addAction(new PromotedBuildAction(build,qualification));
-            build.save();
-        }
+        if (!PromotedBuildAction.getOrAttach(build).add(qualification))
+            return null;    // by someone else in the mean time
+        onQualified(build);
+        getParent().getJournal().qualified(this, build);
+        PromotionEvents.fire(PromotionEvents.Type.QUALIFIED, this, build, null);
 
         // schedule promotion activity.
         return scheduleBuild2(build,cause);
@@ -371,14 +564,50 @@ public final class PromotionProcess extends AbstractProject<PromotionProcess,Pro
         actions.add(new PromotionTargetAction(build));
 
         // remember what build we are promoting
-        return super.scheduleBuild2(0, cause, actions.toArray(new Action[actions.size()]));
+        Future<Promotion> f = super.scheduleBuild2(0, cause, actions.toArray(new Action[actions.size()]));
+        if (f!=null) {
+            getQueued().put(build.getNumber(), f);
+            PromotionEvents.fire(PromotionEvents.Type.QUEUED, this, build, null);
+        }
+        return f;
     }
 
+    /**
+     * Is a promotion of the given build waiting in the queue?
+     */
     public boolean isInQueue(AbstractBuild<?,?> build) {
-        for (Item item : Hudson.getInstance().getQueue().getItems(this))
-            if (item.getAction(PromotionTargetAction.class).resolve(this)==build)
-                return true;
-        return false;
+        ConcurrentMap<Integer,Future<Promotion>> queued = getQueued();
+        Future<Promotion> f = queued.get(build.getNumber());
+        if (f==null)    return false;
+        if (f.isDone()) {
+            // cancelled, or it has run
+            queued.remove(build.getNumber(), f);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets {@link #queued}, populating it from the queue the first time around,
+     * as items can be left there from before a restart.
+     */
+    private ConcurrentMap<Integer,Future<Promotion>> getQueued() {
+        ConcurrentMap<Integer,Future<Promotion>> q = queued;
+        if (q==null) {
+            synchronized (this) {
+                if (queued==null) {
+                    q = new ConcurrentHashMap<Integer,Future<Promotion>>();
+                    for (Item item : Hudson.getInstance().getQueue().getItems(this)) {
+                        PromotionTargetAction pta = item.getAction(PromotionTargetAction.class);
+                        if (pta!=null)
+                            q.put(pta.getNumber(), (Future)item.getFuture());
+                    }
+                    queued = q;
+                }
+                q = queued;
+            }
+        }
+        return q;
     }
 
 //
@@ -424,16 +653,143 @@ public final class PromotionProcess extends AbstractProject<PromotionProcess,Pro
 
             @Override
             public Run<?, ?> resolve(Job<?, ?> job) {
-                String id = getId();
-                for( Run<?,?> build : job.getBuilds() ) {
-                    PromotedBuildAction a = build.getAction(PromotedBuildAction.class);
-                    if(a!=null && a.contains(id))
-                        return build;
+                int n = getLastPromotedNumber();
+                if (n==0)   return null;
+                Run<?,?> b = job.getBuildByNumber(n);
+                if (b==null) {
+                    // deleted behind our back
+                    b = findLastPromoted(job.getLastBuild());
+                    setLastPromotedNumber(b!=null ? b.getNumber() : 0);
                 }
-                return null;
+                return b;
             }
         };
     }
 
+    /**
+     * Gets the number of the latest build of the owner project qualified for this promotion,
+     * which is what {@link #asPermalink()} points to.
+     *
+     * @return
+     *      0 if there's no such build.
+     */
+    public int getLastPromotedNumber() {
+        Integer n = lastPromoted;
+        if (n==null) {
+            synchronized (this) {
+                if (lastPromoted==null) {
+                    File f = getLastPromotedFile();
+                    try {
+                        String s = f.exists() ? new TextFile(f).readTrim() : null;
+                        if (s!=null)
+                            lastPromoted = Integer.parseInt(s);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load "+f, e);
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Corrupt "+f, e);
+                    }
+                    if (lastPromoted==null) {
+                        // not recorded yet
+                        setLastPromotedNumber(lookupLastPromotedNumber());
+                    }
+                }
+                n = lastPromoted;
+            }
+        }
+        return n;
+    }
+
+    private synchronized void setLastPromotedNumber(int n) {
+        lastPromoted = n;
+        try {
+            new TextFile(getLastPromotedFile()).write(String.valueOf(n));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save "+getLastPromotedFile(), e);
+        }
+    }
+
+    /**
+     * Called when a build of the owner project qualifies for this promotion.
+     */
+    private synchronized void onQualified(AbstractBuild<?,?> build) {
+        if (build.getNumber() > getLastPromotedNumber())
+            setLastPromotedNumber(build.getNumber());
+    }
+
+    /**
+     * Called when a build of the owner project is deleted.
+     */
+    private synchronized void onDeleted(AbstractBuild<?,?> build) {
+        if (build.getNumber() == getLastPromotedNumber()) {
+            // the journal has already forgotten this build
+            setLastPromotedNumber(lookupLastPromotedNumber());
+        }
+    }
+
+    /**
+     * Finds out {@link #getLastPromotedNumber()} from the journal, or from the builds
+     * if the journal is still being rebuilt.
+     */
+    private int lookupLastPromotedNumber() {
+        PromotionJournal j = getParent().getJournal();
+        if (j.isComplete())
+            return j.getLastQualified(getName());
+        Run<?,?> b = findLastPromoted(getParent().getOwner().getLastBuild());
+        return b!=null ? b.getNumber() : 0;
+    }
+
+    /**
+     * Looks for the latest build qualified for this promotion, starting from the given one.
+     */
+    private Run<?,?> findLastPromoted(Run<?,?> start) {
+        for (Run<?,?> b=start; b!=null; b=b.getPreviousBuild()) {
+            PromotedBuildAction a = b.getAction(PromotedBuildAction.class);
+            if(a!=null && a.contains(getName()))
+                return b;
+        }
+        return null;
+    }
+
+    private File getLastPromotedFile() {
+        return new File(getRootDir(), "lastPromoted");
+    }
+
+    /**
+     * Keeps {@link #getLastPromotedNumber()} up to date as builds get deleted,
+     * and {@link #queued} up to date as promotions start.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<AbstractBuild<?,?>> {
+        public RunListenerImpl() {
+            super((Class)AbstractBuild.class);
+        }
+
+        @Override
+        public void onStarted(AbstractBuild<?,?> build, TaskListener listener) {
+            if (build instanceof Promotion) {
+                // it has left the queue
+                Promotion p = (Promotion)build;
+                PromotionTargetAction pta = p.getAction(PromotionTargetAction.class);
+                if (pta!=null)
+                    p.getParent().getQueued().remove(pta.getNumber());
+            }
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild<?,?> build) {
+            JobPropertyImpl jp = build.getProject().getProperty(JobPropertyImpl.class);
+            if (jp==null)   return;
+            jp.getJournal().deleted(build);
+            // inactive processes fix themselves up when their permalink is resolved
+            for (PromotionProcess p : jp.getActiveItems())
+                p.onDeleted(build);
+        }
+    }
+
+    /**
+     * If true, {@link PromotionCondition.Cost#EXPENSIVE} conditions of a process are evaluated in parallel.
+     */
+    public static boolean PARALLEL_CONDITIONS = Boolean.getBoolean(PromotionProcess.class.getName()+".parallelConditions");
+
     private static final Logger LOGGER = Logger.getLogger(PromotionProcess.class.getName());
 }
@@ -19,6 +19,13 @@ public class PromotionTargetAction extends InvisibleAction {
         number = build.getNumber();
     }
 
+    /**
+     * Number of the build being promoted.
+     */
+    public int getNumber() {
+        return number;
+    }
+
     public AbstractBuild<?,?> resolve() {
         AbstractProject<?,?> j = Hudson.getInstance().getItemByFullName(jobName, AbstractProject.class);
         if (j==null)    return null;
@@ -53,11 +53,31 @@ public final class Status {
      */
     private List<Integer> promotionAttempts = new ArrayList<Integer>();
 
+    /**
+     * Summary of the last completed {@link Promotion}, so that it can be shown without loading the record.
+     * {@link #lastAttempt} is 0 if nothing is recorded, for example because the data predates this.
+     */
+    private int lastAttempt;
+    private String lastResult;
+    private long lastTimestamp;
+
+    /**
+     * Build number of the last failed {@link Promotion}. Only valid if {@link #isSummaryAvailable()}.
+     */
+    private int lastFailed;
+
+    /**
+     * True once {@link #lastFailed} and {@link #promotion} account for all the attempts. False for data
+     * that predates the summary, until {@link #onPromotionCompleted(Promotion)} catches up with the earlier attempts.
+     */
+    private boolean summarySeeded;
+
     /*package*/ transient PromotedBuildAction parent;
 
     public Status(PromotionProcess process, Collection<? extends PromotionBadge> badges) {
         this.name = process.getName();
         this.badges = badges.toArray(new PromotionBadge[badges.size()]);
+        this.summarySeeded = true;  // no attempts yet
     }
 
     public String getName() {
@@ -84,15 +104,30 @@ public final class Status {
      * Gets the icon that should represent this promotion (that is potentially attempted but failed.)
      */
     public String getIcon(String size) {
+        return getIcon(size, getProcess());
+    }
+
+    /**
+     * Same as {@link #getIcon(String)}, for callers that have already looked up the process.
+     *
+     * @param p
+     *      The result of {@link #getProcess()}.
+     */
+    public String getIcon(String size, PromotionProcess p) {
         String baseName;
 
-        PromotionProcess p = getProcess();
         if (p == null) {
             // promotion process undefined (perhaps deleted?). fallback to the default icon
             baseName = "star-gold";
         } else {
-            Promotion l = getLast();
-            if (l!=null && l.getResult()!= Result.SUCCESS)
+            Result r;
+            if (isSummaryAvailable()) {
+                r = getLastResult();
+            } else {
+                Promotion l = getLast();
+                r = l!=null ? l.getResult() : Result.SUCCESS;
+            }
+            if (r!=Result.SUCCESS)
                 return Hudson.RESOURCE_PATH+"/images/"+size+"/error.png";
 
             baseName = p.getIcon();
@@ -198,6 +233,72 @@ public final class Status {
         promotionAttempts.add(p.getNumber());
     }
 
+    /**
+     * Called when a promotion completes, successfully or not.
+     */
+    /*package*/ void onPromotionCompleted(Promotion p) {
+        if (!summarySeeded)
+            seedSummary(p);
+        lastAttempt = p.getNumber();
+        lastResult = String.valueOf(p.getResult());
+        lastTimestamp = p.getTimeInMillis();
+        if (p.getResult()!=Result.SUCCESS)
+            lastFailed = p.getNumber();
+    }
+
+    /**
+     * Looks at the attempts made before the summary was recorded, once, so that the summary covers them.
+     */
+    private void seedSummary(Promotion current) {
+        PromotionProcess process = current.getParent();
+        for( Integer n : Iterators.reverse(promotionAttempts) ) {
+            if (lastFailed!=0 && promotion>=0)
+                break;  // both found
+            if (n==current.getNumber())
+                continue;
+            Promotion b = process.getBuildByNumber(n);
+            if (b==null || b.isBuilding())
+                continue;
+            if (b.getResult()==Result.SUCCESS) {
+                if (promotion<0)    promotion = n;
+            } else {
+                if (lastFailed==0)  lastFailed = n;
+            }
+        }
+        summarySeeded = true;
+    }
+
+    /**
+     * Is the outcome of the latest attempt recorded in this object?
+     * False if the latest attempt is still in progress, or if the data predates the summary.
+     */
+    private boolean isSummaryAvailable() {
+        return summarySeeded && lastAttempt!=0 && lastAttempt==promotionAttempts.get(promotionAttempts.size()-1);
+    }
+
+    /**
+     * Gets the result of the last completed {@link Promotion}, without loading it.
+     *
+     * @return
+     *      null if no promotion has completed, or if it's not known without loading the record.
+     */
+    public Result getLastResult() {
+        return lastResult!=null ? Result.fromString(lastResult) : null;
+    }
+
+    /**
+     * Gets when the last completed {@link Promotion} started, without loading it.
+     *
+     * @return
+     *      null if no promotion has completed, or if it's not known without loading the record.
+     */
+    public Calendar getLastTimestamp() {
+        if (lastAttempt==0) return null;
+        GregorianCalendar c = new GregorianCalendar();
+        c.setTimeInMillis(lastTimestamp);
+        return c;
+    }
+
     /**
      * Called when a promotion succeeds.
      */
@@ -214,6 +315,11 @@ public final class Status {
      */
     public Promotion getLastSuccessful() {
         PromotionProcess p = getProcess();
+        if (isSummaryAvailable()) {
+            if (promotion<0)    return null;
+            Promotion b = p.getBuildByNumber(promotion);
+            if (b!=null)        return b;
+        }
         for( Integer n : Iterators.reverse(promotionAttempts) ) {
             Promotion b = p.getBuildByNumber(n);
             if(b!=null && b.getResult()== Result.SUCCESS)
@@ -227,6 +333,11 @@ public final class Status {
      */
     public Promotion getLastFailed() {
         PromotionProcess p = getProcess();
+        if (isSummaryAvailable()) {
+            if (lastFailed==0)  return null;
+            Promotion b = p.getBuildByNumber(lastFailed);
+            if (b!=null)        return b;
+        }
         for( Integer n : Iterators.reverse(promotionAttempts) ) {
             Promotion b = p.getBuildByNumber(n);
             if(b!=null && b.getResult()!=Result.SUCCESS)
@@ -237,6 +348,10 @@ public final class Status {
 
     public Promotion getLast() {
         PromotionProcess p = getProcess();
+        if (isSummaryAvailable()) {
+            Promotion b = p.getBuildByNumber(lastAttempt);
+            if (b!=null)        return b;
+        }
         for( Integer n : Iterators.reverse(promotionAttempts) ) {
             Promotion b = p.getBuildByNumber(n);
             if(b!=null)
@@ -0,0 +1,121 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.promoted_builds.conditions.DownstreamPassCondition;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the verdicts of {@link PromotionCondition#isMet(PromotionProcess, AbstractBuild)}
+ * for the recently evaluated builds of a {@link PromotionProcess}, so that
+ * {@link PromotionProcess#isMet(AbstractBuild)}, {@link PromotionProcess#getMetQualifications(AbstractBuild)}
+ * and {@link PromotionProcess#getUnmetConditions(AbstractBuild)} don't evaluate the same condition over and over.
+ *
+ * <p>
+ * Verdicts are dropped when something that can change them happens: a build of the owner project
+ * or of one of the downstream jobs it watches completes or is deleted, a build is approved or promoted,
+ * or the process is reconfigured.
+ */
+public final class VerdictCache {
+    /**
+     * Build number to the verdicts of each condition, by identity. A null verdict means "not met".
+     */
+    private final Map<Integer,Map<PromotionCondition,PromotionBadge>> verdicts =
+            new LinkedHashMap<Integer,Map<PromotionCondition,PromotionBadge>>(16,0.75f,true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer,Map<PromotionCondition,PromotionBadge>> eldest) {
+                    return size()>MAX_BUILDS;
+                }
+            };
+
+    /**
+     * Incremented on every invalidation, so that a verdict computed concurrently with it doesn't get cached.
+     */
+    private long version;
+
+    /**
+     * Gets the verdict of the given condition, evaluating it if it's not known.
+     */
+    /*package*/ PromotionBadge isMet(PromotionProcess process, PromotionCondition cond, AbstractBuild<?,?> build) {
+        long v;
+        synchronized (this) {
+            Map<PromotionCondition,PromotionBadge> m = verdicts.get(build.getNumber());
+            if (m!=null && m.containsKey(cond))
+                return m.get(cond);
+            v = version;
+        }
+
+        PromotionBadge b = cond.isMet(process, build);
+
+        synchronized (this) {
+            if (v==version) {
+                Map<PromotionCondition,PromotionBadge> m = verdicts.get(build.getNumber());
+                if (m==null)
+                    verdicts.put(build.getNumber(), m=new IdentityHashMap<PromotionCondition,PromotionBadge>());
+                m.put(cond,b);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Forgets the verdicts for the given build.
+     */
+    public synchronized void invalidate(int buildNumber) {
+        version++;
+        verdicts.remove(buildNumber);
+    }
+
+    /**
+     * Forgets all the verdicts.
+     */
+    public synchronized void invalidate() {
+        version++;
+        verdicts.clear();
+    }
+
+    /**
+     * Forgets the verdicts of all the processes of the given project.
+     */
+    public static void invalidate(AbstractProject<?,?> owner) {
+        JobPropertyImpl jp = owner.getProperty(JobPropertyImpl.class);
+        if (jp==null)   return;
+        for (PromotionProcess p : jp.getActiveItems())
+            p.getVerdicts().invalidate();
+    }
+
+    /**
+     * Drops verdicts as builds complete or get deleted.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<AbstractBuild<?,?>> {
+        public RunListenerImpl() {
+            super((Class)AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
+            onChanged(build);
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild<?,?> build) {
+            onChanged(build);
+        }
+
+        private void onChanged(AbstractBuild<?,?> build) {
+            invalidate(build.getProject());
+            // upstream projects that use this job as a promotion criteria
+            for (PromotionProcess p : DownstreamPassCondition.RunListenerImpl.getInterestedProcesses(build.getProject()))
+                p.getVerdicts().invalidate();
+        }
+    }
+
+    private static final int MAX_BUILDS = 64;
+}
@@ -7,17 +7,21 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Run;
 import hudson.model.listeners.RunListener;
+import hudson.plugins.promoted_builds.BuildNumberSet;
 import hudson.plugins.promoted_builds.PromotionBadge;
 import hudson.plugins.promoted_builds.PromotionCondition;
 import hudson.plugins.promoted_builds.PromotionConditionDescriptor;
+import hudson.plugins.promoted_builds.PromotionEvaluator;
 import hudson.plugins.promoted_builds.PromotionProcess;
 import hudson.plugins.promoted_builds.JobPropertyImpl;
 import hudson.util.FormValidation;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.apache.log4j.Logger;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
@@ -41,44 +45,121 @@ public class BuildQuantityCondition extends PromotionCondition{
 		
 	}
     
+    /**
+     * {@link #successQuantity} as a number.
+     */
+    public int getQuantity() {
+        int q = quantity;
+        if (q==0)
+            quantity = q = Integer.parseInt(successQuantity);
+        return q;
+    }
+
     @Override
     public PromotionBadge isMet(PromotionProcess promotionProcess, AbstractBuild<?, ?> build) {
-    	Result r = build.getResult();
-        ArrayList jobs = build.getProject().getBuilds();
-        ArrayList buildsToSave = new ArrayList<Run>();
-        int quantity = Integer.parseInt(successQuantity);
-    	boolean runPromote = true;
-        
-    	if((jobs.size()) < quantity){
-        	runPromote = false;
-        }else {
-        	for(int a = 0; a < jobs.size(); a++) {
-       			if(a <= quantity) {
-       				buildsToSave.add(jobs.get(a));
-       				
-       				if(!((Run)jobs.get(a)).getResult().equals(Result.SUCCESS)){
-       				  runPromote = false;
-        			  break;
-        		   }
-    			}
-       		} 
+        Result r = build.getResult();
+        int quantity = getQuantity();
+        AbstractProject<?,?> project = build.getProject();
+
+        // quick rejection without looking at any build
+        if (getRecentSuccesses(project) < quantity)
+            return null;
+
+        // the latest quantity+1 builds, or all of them if there aren't that many, have to be successful
+        int[] numbers = new int[quantity+1];
+        int n = 0;
+        for (AbstractBuild<?,?> b=project.getLastBuild(); b!=null && n<=quantity; b=b.getPreviousBuild()) {
+            if (b.getResult()!=Result.SUCCESS)
+                return null;
+            numbers[n++] = b.getNumber();
         }
+        if (n < quantity)
+            return null;
+        BuildNumberSet current = BuildNumberSet.of(Arrays.copyOf(numbers,n));
 
-       if(promotionProcess.getLastPromotedBuilds() == null && runPromote){
-    	   promotionProcess.setLastPromotedBuilds(buildsToSave);
-       }
-        
-       if(runPromote){
-    	   runPromote = applyPromote(buildsToSave, promotionProcess.getLastPromotedBuilds());
-       }
-        
-       if (runPromote && r != Result.UNSTABLE) {
-    	   promotionProcess.setLastPromotedBuilds(buildsToSave);
-    	   return new BuildQuantityBadge();
-       }
-       return null;
+        try {
+            BuildNumberSet last = promotionProcess.getLastPromotedBuilds();
+            if (last == null) {
+                promotionProcess.setLastPromotedBuilds(current);
+                last = current;
+            }
+
+            // none of them may have been used for the last promotion
+            if (!current.intersects(last) && r != Result.UNSTABLE) {
+                promotionProcess.setLastPromotedBuilds(current);
+                return new BuildQuantityBadge();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record the last promoted builds of "+promotionProcess.getFullName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Number of consecutive successful builds of the given project, counting back from
+     * the latest completed build and capped at {@link #getQuantity()}+1.
+     */
+    private synchronized int getRecentSuccesses(AbstractProject<?,?> project) {
+        if (!counted) {
+            int limit = getQuantity()+1;
+            AbstractBuild<?,?> b = project.getLastBuild();
+            lastCounted = b!=null ? b.getNumber() : 0;
+
+            int n = 0;
+            for (; b!=null && n<limit; b=b.getPreviousBuild()) {
+                Result r = b.getResult();
+                if (r==null)    continue;   // still building
+                if (r!=Result.SUCCESS)  break;
+                n++;
+            }
+            recentSuccesses = n;
+            counted = true;
+        }
+        return recentSuccesses;
     }
 
+    /**
+     * Updates {@link #recentSuccesses} as a build of the owner project completes.
+     */
+    private synchronized void onCompleted(AbstractBuild<?,?> build) {
+        if (!counted)   return;
+        if (build.getNumber() <= lastCounted) {
+            // completed out of order. count again next time
+            counted = false;
+            return;
+        }
+        lastCounted = build.getNumber();
+        if (build.getResult()==Result.SUCCESS)
+            recentSuccesses = Math.min(recentSuccesses+1, getQuantity()+1);
+        else
+            recentSuccesses = 0;
+    }
+
+    private synchronized void recount() {
+        counted = false;
+    }
+
+    /**
+     * Lazily parsed {@link #successQuantity}.
+     */
+    private transient int quantity;
+
+    /**
+     * See {@link #getRecentSuccesses(AbstractProject)}. Only valid if {@link #counted}.
+     */
+    private transient int recentSuccesses;
+
+    /**
+     * Number of the newest build accounted for in {@link #recentSuccesses}.
+     */
+    private transient int lastCounted;
+
+    private transient boolean counted;
+
+    /**
+     * @deprecated
+     *      No longer used.
+     */
     public boolean applyPromote(ArrayList current, ArrayList last) {
     	for(int a = 0; a < current.size(); a++){
     		Run c = (Run)current.get(a);
@@ -113,16 +194,24 @@ public class BuildQuantityCondition extends PromotionCondition{
         public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
             JobPropertyImpl jp = build.getProject().getProperty(JobPropertyImpl.class);
             if(jp!=null) {
-                for (PromotionProcess p : jp.getItems()) {
+                for (PromotionProcess p : jp.getActiveItems(BuildQuantityCondition.class)) {
+                    for (PromotionCondition cond : p.conditions) {
+                        if (cond instanceof BuildQuantityCondition)
+                            ((BuildQuantityCondition)cond).onCompleted(build);
+                    }
+                    PromotionEvaluator.schedule(p, build);
+                }
+            }
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild<?,?> build) {
+            JobPropertyImpl jp = build.getProject().getProperty(JobPropertyImpl.class);
+            if(jp!=null) {
+                for (PromotionProcess p : jp.getActiveItems(BuildQuantityCondition.class)) {
                     for (PromotionCondition cond : p.conditions) {
-                        if (cond instanceof BuildQuantityCondition) {
-                            try {
-                                p.considerPromotion2(build);
-                                break; // move on to the next process
-                            } catch (IOException e) {
-                            	e.printStackTrace(listener.error("Failed to promote a build"));
-                            }
-                        }
+                        if (cond instanceof BuildQuantityCondition)
+                            ((BuildQuantityCondition)cond).recount();
                     }
                 }
             }
@@ -158,5 +247,5 @@ public class BuildQuantityCondition extends PromotionCondition{
         }
     }
     
-    //private static Logger log = Logger.getLogger(BuildQuantityCondition.class.getName());
+    private static final Logger LOGGER = Logger.getLogger(BuildQuantityCondition.class.getName());
 }
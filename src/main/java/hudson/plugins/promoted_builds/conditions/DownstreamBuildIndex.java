@@ -0,0 +1,212 @@
+package hudson.plugins.promoted_builds.conditions;
+
+import com.thoughtworks.xstream.XStream;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.Saveable;
+import hudson.plugins.promoted_builds.DeferredSaver;
+import hudson.util.XStream2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which builds of downstream jobs descend from which build of an upstream project,
+ * together with their results, so that {@link DownstreamPassCondition} doesn't need to go through
+ * fingerprint records to find them.
+ *
+ * <p>
+ * One index is kept per upstream project, in {@code promotions/downstream-builds.xml}.
+ * It is fed by {@link DownstreamPassCondition.RunListenerImpl} as downstream builds complete,
+ * so it only knows about relationships discovered since it was introduced. It also only keeps
+ * the links of the upstream builds that are still retained, up to {@link #MAX_UPSTREAM_BUILDS}
+ * of them. Callers should treat the index as a shortcut, and fall back to fingerprints
+ * when it doesn't have a passing build.
+ *
+ * <p>
+ * Updates are written through {@link DeferredSaver}, so that a burst of downstream completions
+ * costs one write.
+ */
+public final class DownstreamBuildIndex implements Saveable {
+    /**
+     * Upstream build number to the downstream builds recorded for it.
+     */
+    private final SortedMap<Integer,List<Link>> links = new TreeMap<Integer,List<Link>>();
+
+    /**
+     * The upstream project, which the index is saved in, and whose discarded builds are pruned from it.
+     */
+    private transient AbstractProject<?,?> upstream;
+
+    /**
+     * A downstream build that descends from an upstream build.
+     */
+    public static final class Link {
+        /**
+         * Full name of the downstream job.
+         */
+        public final String job;
+        public final int number;
+        /**
+         * {@link Result} of the downstream build, in its string form.
+         */
+        private final String result;
+
+        Link(AbstractBuild<?,?> build) {
+            this.job = build.getParent().getFullName();
+            this.number = build.getNumber();
+            Result r = build.getResult();
+            this.result = r!=null ? r.toString() : null;
+        }
+
+        public Result getResult() {
+            return result!=null ? Result.fromString(result) : null;
+        }
+
+        /**
+         * Does this build satisfy {@link DownstreamPassCondition}?
+         */
+        public boolean isPassing(boolean evenIfUnstable) {
+            Result r = getResult();
+            return (r == Result.SUCCESS) || (evenIfUnstable && r == Result.UNSTABLE);
+        }
+    }
+
+    /**
+     * Gets the builds of the given downstream job recorded for the given upstream build.
+     *
+     * @return
+     *      can be empty but never null.
+     */
+    public synchronized List<Link> getLinks(int upstream, String job) {
+        List<Link> all = links.get(upstream);
+        if (all==null)  return Collections.emptyList();
+
+        List<Link> r = new ArrayList<Link>();
+        for (Link l : all)
+            if (l.job.equals(job))
+                r.add(l);
+        return r;
+    }
+
+    /**
+     * Records that the given downstream build descends from the given upstream build.
+     */
+    public synchronized void add(int upstream, AbstractBuild<?,?> downstream) {
+        List<Link> all = links.get(upstream);
+        if (all==null)
+            links.put(upstream, all=new ArrayList<Link>());
+
+        Link link = new Link(downstream);
+        boolean replaced = false;
+        for (int i=0; i<all.size() && !replaced; i++) {
+            Link l = all.get(i);
+            if (l.job.equals(link.job) && l.number==link.number) {
+                all.set(i,link);
+                replaced = true;
+            }
+        }
+        if (!replaced)
+            all.add(link);
+        prune();
+        DeferredSaver.save(this);
+    }
+
+    /**
+     * Forgets everything about the given upstream build, for example because it's deleted.
+     */
+    public synchronized void remove(int upstream) {
+        if (links.remove(upstream)!=null)
+            DeferredSaver.save(this);
+    }
+
+    /**
+     * Drops the links of the upstream builds that are discarded, or that are too old to be kept.
+     */
+    private void prune() {
+        AbstractBuild<?,?> first = upstream.getFirstBuild();
+        if (first!=null)
+            links.headMap(first.getNumber()).clear();
+        while (links.size()>MAX_UPSTREAM_BUILDS)
+            links.remove(links.firstKey());
+    }
+
+    public synchronized void save() throws IOException {
+        // looked up now, as the project may have been renamed since the save was requested
+        File dir = upstream.getRootDir();
+        if (!dir.isDirectory())
+            return;     // the project is deleted
+        getFile(dir).write(this);
+    }
+
+    private static XmlFile getFile(File dir) {
+        return new XmlFile(XSTREAM, new File(dir, "promotions/downstream-builds.xml"));
+    }
+
+    /**
+     * Gets the index of the given upstream project, loading it from disk if necessary.
+     */
+    public static DownstreamBuildIndex get(AbstractProject<?,?> upstream) {
+        synchronized (INDICES) {
+            WeakReference<DownstreamBuildIndex> ref = INDICES.get(upstream);
+            DownstreamBuildIndex index = ref!=null ? ref.get() : null;
+            if (index==null) {
+                XmlFile f = getFile(upstream.getRootDir());
+                if (f.exists()) {
+                    try {
+                        index = (DownstreamBuildIndex)f.read();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load "+f+". Rebuilding it from scratch", e);
+                    }
+                }
+                if (index==null)
+                    index = new DownstreamBuildIndex();
+                index.upstream = upstream;
+                INDICES.put(upstream, new WeakReference<DownstreamBuildIndex>(index));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Drops the in-memory copy of the given project's index, because the project is deleted.
+     */
+    /*package*/ static void forget(AbstractProject<?,?> upstream) {
+        synchronized (INDICES) {
+            INDICES.remove(upstream);
+        }
+    }
+
+    /**
+     * Maximum number of upstream builds whose links are kept.
+     */
+    public static final int MAX_UPSTREAM_BUILDS = Integer.getInteger(DownstreamBuildIndex.class.getName()+".maxUpstreamBuilds", 1000);
+
+    /**
+     * Indices by their upstream projects. The values are weak as they refer to the keys.
+     * An index with a pending save is held by {@link DeferredSaver} until it's written.
+     */
+    private static final Map<AbstractProject<?,?>,WeakReference<DownstreamBuildIndex>> INDICES =
+            new WeakHashMap<AbstractProject<?,?>,WeakReference<DownstreamBuildIndex>>();
+
+    private static final XStream XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("downstream-builds", DownstreamBuildIndex.class);
+        XSTREAM.alias("link", Link.class);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DownstreamBuildIndex.class.getName());
+}
@@ -10,24 +10,34 @@ import hudson.model.Fingerprint;
 import hudson.model.Fingerprint.BuildPtr;
 import hudson.model.Hudson;
 import hudson.model.InvisibleAction;
+import hudson.model.Item;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
 import hudson.model.listeners.RunListener;
+import hudson.plugins.promoted_builds.DeferredSaver;
+import hudson.plugins.promoted_builds.PromotedBuildAction;
 import hudson.plugins.promoted_builds.JobPropertyImpl;
 import hudson.plugins.promoted_builds.PromotionBadge;
 import hudson.plugins.promoted_builds.PromotionCondition;
 import hudson.plugins.promoted_builds.PromotionConditionDescriptor;
+import hudson.plugins.promoted_builds.PromotionEvaluator;
 import hudson.plugins.promoted_builds.PromotionProcess;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.logging.Logger;
 
 /**
  * {@link PromotionCondition} that tests if certain downstream projects have passed.
@@ -63,35 +73,226 @@ public class DownstreamPassCondition extends PromotionCondition {
     
     @Override
     public PromotionBadge isMet(PromotionProcess promotionProcess, AbstractBuild<?,?> build) {
-        Badge badge = new Badge();
+        ResolvedJobs r = getResolvedJobs();
+        Satisfaction s = getSatisfaction(build.getNumber());
 
-        PseudoDownstreamBuilds pdb = build.getAction(PseudoDownstreamBuilds.class);
-
-        OUTER:
-        for (AbstractProject<?,?> j : getJobList()) {
-            for( AbstractBuild<?,?> b : build.getDownstreamBuilds(j) ) {
-                Result r = b.getResult();
-                if ((r == Result.SUCCESS) || (evenIfUnstable && r == Result.UNSTABLE)) {
-                    badge.add(b);
-                    continue OUTER;
+        // only look for the jobs that haven't passed yet. do this outside the lock,
+        // as it may have to go through fingerprints
+        List<AbstractProject<?,?>> pending = new ArrayList<AbstractProject<?,?>>();
+        List<Integer> bits = new ArrayList<Integer>();
+        synchronized (s) {
+            for (int i=0; i<r.projects.size(); i++) {
+                if (!s.met.get(r.bits[i])) {
+                    pending.add(r.projects.get(i));
+                    bits.add(r.bits[i]);
                 }
             }
+        }
 
-            if (pdb!=null) {// if fingerprint doesn't have any, try the pseudo-downstream
-                for (AbstractBuild<?,?> b : pdb.listBuilds(j)) {
-                    Result r = b.getResult();
-                    if ((r == Result.SUCCESS) || (evenIfUnstable && r == Result.UNSTABLE)) {
-                        badge.add(b);
-                        continue OUTER;
-                    }
+        Fingerprint.BuildPtr[] found = new Fingerprint.BuildPtr[pending.size()];
+        for (int i=0; i<found.length; i++)
+            found[i] = findPassingBuild(build, pending.get(i));
+
+        synchronized (s) {
+            boolean met = true;
+            for (int i=0; i<found.length; i++) {
+                int bit = bits.get(i);
+                if (found[i]!=null) {
+                    s.set(bit, found[i]);
+                } else if (!s.met.get(bit)) {
+                    // none of the builds of this job passed.
+                    s.checked.set(bit);
+                    met = false;
                 }
             }
+            if (!met)   return null;
 
-            // none of the builds of this job passed.
-            return null;
+            Badge badge = new Badge();
+            for (Fingerprint.BuildPtr b : s.certifiers)
+                if (b!=null)
+                    badge.builds.add(b);
+            return badge;
+        }
+    }
+
+    @Override
+    public Cost getCost() {
+        return Cost.EXPENSIVE;
+    }
+
+    /**
+     * Finds a downstream build of the given job that passed and descends from the given build.
+     *
+     * @return
+     *      null if none of the builds of the job passed.
+     */
+    private Fingerprint.BuildPtr findPassingBuild(AbstractBuild<?,?> build, AbstractProject<?,?> j) {
+        // the index is the cheapest, but it may not know about builds from before it was introduced,
+        // or about those that only fingerprints relate
+        for (DownstreamBuildIndex.Link l : DownstreamBuildIndex.get(build.getProject()).getLinks(build.getNumber(), j.getFullName())) {
+            if (l.isPassing(evenIfUnstable) && j.getBuildByNumber(l.number)!=null)
+                return new Fingerprint.BuildPtr(l.job,l.number);
+        }
+
+        for( AbstractBuild<?,?> b : build.getDownstreamBuilds(j) ) {
+            if (isPassing(b))
+                return new Fingerprint.BuildPtr(b);
+        }
+
+        // if fingerprint doesn't have any, try the pseudo-downstream
+        List<PseudoDownstreamBuilds> pdbs = new ArrayList<PseudoDownstreamBuilds>(build.getActions(PseudoDownstreamBuilds.class));
+        PromotedBuildAction pba = build.getAction(PromotedBuildAction.class);
+        if (pba!=null)
+            pdbs.addAll(pba.getAttachments(PseudoDownstreamBuilds.class));
+        for (PseudoDownstreamBuilds pdb : pdbs) {
+            for (AbstractBuild<?,?> b : pdb.listBuilds(j)) {
+                if (isPassing(b))
+                    return new Fingerprint.BuildPtr(b);
+            }
+        }
+        return null;
+    }
+
+    private boolean isPassing(AbstractBuild<?,?> b) {
+        Result r = b.getResult();
+        return (r == Result.SUCCESS) || (evenIfUnstable && r == Result.UNSTABLE);
+    }
+
+    /**
+     * Called when a downstream build that descends from the given upstream build completes,
+     * to record it in the satisfaction state of the upstream build.
+     *
+     * @return
+     *      false if this condition is known to be still unmet for the upstream build,
+     *      meaning there's no point in evaluating its promotion. Otherwise true.
+     */
+    /*package*/ boolean onDownstreamCompleted(AbstractBuild<?,?> upstream, AbstractBuild<?,?> downstream) {
+        ResolvedJobs r = getResolvedJobs();
+        Integer bit = r.bitByName.get(downstream.getParent().getFullName());
+        if (bit==null)  return true;    // not one of ours
+
+        Satisfaction s;
+        synchronized (this) {
+            s = satisfactions!=null ? satisfactions.get(upstream.getNumber()) : null;
+        }
+        if (s==null)    return true;    // nothing known yet. needs a full evaluation
+
+        synchronized (s) {
+            if (isPassing(downstream))
+                s.set(bit, new Fingerprint.BuildPtr(downstream));
+
+            // other jobs that haven't been looked at might have passed already
+            for (int i : r.bits) {
+                if (!s.met.get(i) && s.checked.get(i))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Called when any build of a downstream job completes, whichever upstream build it turns out to descend from.
+     *
+     * <p>
+     * The build may descend from upstream builds other than the one it's reported for,
+     * for example through fingerprints, so none of them can be assumed to be still unmet for the job.
+     * If the build was a certifier and no longer passes, it no longer counts either.
+     */
+    /*package*/ void onJobCompleted(AbstractBuild<?,?> downstream) {
+        Integer bit = getResolvedJobs().bitByName.get(downstream.getParent().getFullName());
+        if (bit==null)  return;
+        for (Satisfaction s : getSatisfactions()) {
+            synchronized (s) {
+                s.checked.clear(bit);
+                if (!isPassing(downstream))
+                    s.clear(bit, downstream);
+            }
+        }
+    }
+
+    /**
+     * Called when a build of a downstream job is deleted, so that it no longer certifies anything.
+     */
+    /*package*/ void onDownstreamDeleted(AbstractBuild<?,?> downstream) {
+        Integer bit = getResolvedJobs().bitByName.get(downstream.getParent().getFullName());
+        if (bit==null)  return;
+        for (Satisfaction s : getSatisfactions()) {
+            synchronized (s) {
+                s.clear(bit, downstream);
+            }
+        }
+    }
+
+    private synchronized List<Satisfaction> getSatisfactions() {
+        if (satisfactions==null)    return Collections.emptyList();
+        return new ArrayList<Satisfaction>(satisfactions.values());
+    }
+
+    private synchronized Satisfaction getSatisfaction(int upstream) {
+        if (satisfactions==null)
+            satisfactions = new LinkedHashMap<Integer,Satisfaction>(16,0.75f,true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer,Satisfaction> eldest) {
+                    return size()>MAX_SATISFACTIONS;
+                }
+            };
+        Satisfaction s = satisfactions.get(upstream);
+        if (s==null)
+            satisfactions.put(upstream, s=new Satisfaction(getJobNames().size()));
+        return s;
+    }
+
+    /**
+     * Upstream build number to what we know about the downstream jobs of that build,
+     * for the most recently evaluated builds. Guarded by {@code this}.
+     */
+    private transient Map<Integer,Satisfaction> satisfactions;
+
+    private static final int MAX_SATISFACTIONS = 128;
+
+    /**
+     * How far an upstream build is in satisfying this condition. Bits are indexed by
+     * the position of the job in {@link #getJobNames()}.
+     *
+     * <p>
+     * A downstream completion costs one bit flip rather than re-querying every required job.
+     * A bit is only cleared when the build that certified it is deleted, or completes again without passing.
+     */
+    private static final class Satisfaction {
+        /**
+         * Jobs that have a passing downstream build.
+         */
+        final BitSet met = new BitSet();
+        /**
+         * Jobs that were looked at and had no passing downstream build at that time.
+         * Cleared by {@link #onJobCompleted} whenever a build of the job completes.
+         */
+        final BitSet checked = new BitSet();
+        /**
+         * The downstream builds that certified {@link #met}.
+         */
+        final Fingerprint.BuildPtr[] certifiers;
+
+        Satisfaction(int size) {
+            certifiers = new Fingerprint.BuildPtr[size];
+        }
+
+        void set(int bit, Fingerprint.BuildPtr b) {
+            if (met.get(bit))   return; // keep the first one
+            met.set(bit);
+            certifiers[bit] = b;
+        }
+
+        /**
+         * Forgets the bit if it was certified by the given build.
+         */
+        void clear(int bit, AbstractBuild<?,?> b) {
+            Fingerprint.BuildPtr c = certifiers[bit];
+            if (c!=null && c.getNumber()==b.getNumber() && c.getName().equals(b.getParent().getFullName())) {
+                met.clear(bit);
+                certifiers[bit] = null;
+            }
         }
-        
-        return badge;
     }
 
     /**
@@ -100,25 +301,112 @@ public class DownstreamPassCondition extends PromotionCondition {
      * @return never null.
      */
     public List<AbstractProject<?,?>> getJobList() {
-        List<AbstractProject<?,?>> r = new ArrayList<AbstractProject<?,?>>();
-        for (String name : Util.tokenize(jobs,",")) {
-            AbstractProject job = Hudson.getInstance().getItemByFullName(name.trim(),AbstractProject.class);
-            if(job!=null)   r.add(job);
-        }
+        return getResolvedJobs().projects;
+    }
+
+    private ResolvedJobs getResolvedJobs() {
+        ResolvedJobs r = resolved;
+        if (r==null || r.generation!=itemGeneration)
+            resolved = r = new ResolvedJobs(r);
         return r;
     }
 
+    /**
+     * Names of the downstream jobs that we need to monitor, as configured.
+     *
+     * @return never null. Read-only.
+     */
+    public List<String> getJobNames() {
+        List<String> names = jobNames;
+        if (names==null) {
+            names = new ArrayList<String>();
+            for (String name : Util.tokenize(jobs,",")) {
+                name = name.trim();
+                if (!names.contains(name))
+                    names.add(name);
+            }
+            jobNames = names = Collections.unmodifiableList(names);
+        }
+        return names;
+    }
+
     /**
      * Short-cut for {@code getJobList().contains(job)}.
      */
     public boolean contains(AbstractProject<?,?> job) {
-        if(!jobs.contains(job.getFullName()))    return false;   // quick rejection test
+        return getJobNames().contains(job.getFullName());
+    }
+
+    /**
+     * {@link #jobs} parsed by {@link #getJobNames()}.
+     */
+    private transient volatile List<String> jobNames;
+
+    /**
+     * {@link #getJobList()} as of the last time it was computed.
+     */
+    private transient volatile ResolvedJobs resolved;
+
+    /**
+     * Incremented whenever jobs are created, renamed or deleted, which invalidates
+     * all the {@link ResolvedJobs}.
+     */
+    private static volatile int itemGeneration;
 
-        for (String name : Util.tokenize(jobs,",")) {
-            if(name.trim().equals(job.getFullName()))
-                return true;
+    /**
+     * {@link #getJobNames()} resolved into projects.
+     */
+    private final class ResolvedJobs {
+        final int generation = itemGeneration;
+        final List<AbstractProject<?,?>> projects;
+        /**
+         * Position in {@link #getJobNames()}, which is the bit in {@link Satisfaction}, of each of {@link #projects}.
+         */
+        final int[] bits;
+        /**
+         * Full name of the job to its bit in {@link Satisfaction}.
+         */
+        final Map<String,Integer> bitByName;
+        /**
+         * Names of the jobs that don't exist.
+         */
+        final Set<String> missing;
+
+        /**
+         * @param previous
+         *      the one this replaces, if any.
+         */
+        ResolvedJobs(ResolvedJobs previous) {
+            List<String> names = getJobNames();
+            List<AbstractProject<?,?>> r = new ArrayList<AbstractProject<?,?>>();
+            List<Integer> b = new ArrayList<Integer>();
+            Map<String,Integer> m = new HashMap<String,Integer>();
+            Set<String> missing = new HashSet<String>();
+            for (int i=0; i<names.size(); i++) {
+                String name = names.get(i);
+                m.put(name, i);
+                AbstractProject job = Hudson.getInstance().getItemByFullName(name,AbstractProject.class);
+                if (job!=null) {
+                    r.add(job);
+                    b.add(i);
+                    m.put(job.getFullName(), i);
+                } else {
+                    missing.add(name);
+                }
+            }
+            projects = Collections.unmodifiableList(r);
+            bits = new int[b.size()];
+            for (int i=0; i<bits.length; i++)
+                bits[i] = b.get(i);
+            bitByName = m;
+            this.missing = missing;
+
+            // unrelated jobs come and go all the time, so only report when this changes
+            Set<String> reported = previous!=null ? previous.missing : Collections.<String>emptySet();
+            for (String name : missing)
+                if (!reported.contains(name))
+                    LOGGER.warning("Downstream job "+name+" of a promotion condition doesn't exist");
         }
-        return false;
     }
 
     public static final class Badge extends PromotionBadge {
@@ -163,75 +451,212 @@ public class DownstreamPassCondition extends PromotionCondition {
 
         @Override
         public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
-            // this is not terribly efficient,
-            for(AbstractProject<?,?> j : Hudson.getInstance().getAllItems(AbstractProject.class)) {
-                boolean warned = false; // used to avoid warning for the same project more than once.
+            AbstractProject<?,?> j = null;
+            AbstractBuild<?,?> u = null;
 
-                JobPropertyImpl jp = j.getProperty(JobPropertyImpl.class);
-                if(jp!=null) {
-                    for (PromotionProcess p : jp.getItems()) {
-                        boolean considerPromotion = false;
-                        for (PromotionCondition cond : p.conditions) {
-                            if (cond instanceof DownstreamPassCondition) {
-                                DownstreamPassCondition dpcond = (DownstreamPassCondition) cond;
-                                if(dpcond.contains(build.getParent())) {
-                                    considerPromotion = true;
-                                    break;
-                                }
-                            }
-                        }
-                        if(considerPromotion) {
-                            try {
-                                AbstractBuild<?,?> u = build.getUpstreamRelationshipBuild(j);
-                                if (u==null) {
-                                    // if the fingerprint doesn't tell us, perhaps the cause would tell us?
-                                    for (UpstreamCause uc : Util.filter(build.getCauses(), UpstreamCause.class)) {
-                                        if (uc.getUpstreamProject().equals(j.getFullName())) {
-                                            u = j.getBuildByNumber(uc.getUpstreamBuild());
-                                            if (u!=null) {
-                                                // remember that this build is a pseudo-downstream of the discovered build.
-                                                PseudoDownstreamBuilds pdb = u.getAction(PseudoDownstreamBuilds.class);
-                                                if (pdb==null)
-                                                    u.addAction(pdb=new PseudoDownstreamBuilds());
-                                                pdb.add(build);
-                                                u.save();
-                                                break;
-                                            }
-                                        }
-                                    }
-                                }
-                                if (u==null) {
-                                    // no upstream build. perhaps a configuration problem?
-                                    if(build.getResult()==Result.SUCCESS && !warned) {
-                                        listener.getLogger().println("WARNING: "+j.getFullDisplayName()+" appears to use this job as a promotion criteria, " +
-                                            "but no fingerprint is recorded. Fingerprint needs to be enabled on both this job and "+j.getFullDisplayName()+". " +
-                                                "See http://hudson.gotdns.com/wiki/display/HUDSON/Fingerprint for more details");
-                                        warned = true;
-                                    }
-                                }
-
-                                if(u!=null && p.considerPromotion2(u)!=null)
-                                    listener.getLogger().println("Promoted "+u);
-                            } catch (IOException e) {
-                                e.printStackTrace(listener.error("Failed to promote a build"));
+            for (PromotionProcess p : getInterestedProcesses(build.getParent())) {
+                try {
+                    for (PromotionCondition cond : p.conditions) {
+                        if (cond instanceof DownstreamPassCondition)
+                            ((DownstreamPassCondition)cond).onJobCompleted(build);
+                    }
+
+                    if (p.getOwner()!=j) {
+                        // processes of the same owner are adjacent in the index,
+                        // so the upstream build only needs to be discovered once per owner.
+                        j = p.getOwner();
+                        u = null;
+                        u = findUpstreamBuild(build, j, listener);
+                        if (u!=null)
+                            DownstreamBuildIndex.get(j).add(u.getNumber(), build);
+                    }
+
+                    if(u!=null && isWorthEvaluating(p, u, build))
+                        PromotionEvaluator.schedule(p, u);
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Failed to promote a build"));
+                }
+            }
+        }
+
+        /**
+         * Lets the {@link DownstreamPassCondition}s of the process record the completed build,
+         * and checks if any of them is still known to be unmet.
+         */
+        private boolean isWorthEvaluating(PromotionProcess p, AbstractBuild<?,?> u, AbstractBuild<?,?> build) {
+            boolean r = true;
+            for (PromotionCondition cond : p.conditions) {
+                if (cond instanceof DownstreamPassCondition)
+                    r &= ((DownstreamPassCondition)cond).onDownstreamCompleted(u, build);
+            }
+            return r;
+        }
+
+        /**
+         * Drops deleted downstream builds from the satisfaction states,
+         * and prunes {@link DownstreamBuildIndex} as upstream builds are deleted.
+         */
+        @Override
+        public void onDeleted(AbstractBuild<?,?> build) {
+            for (PromotionProcess p : getInterestedProcesses(build.getParent())) {
+                for (PromotionCondition cond : p.conditions) {
+                    if (cond instanceof DownstreamPassCondition)
+                        ((DownstreamPassCondition)cond).onDownstreamDeleted(build);
+                }
+            }
+
+            JobPropertyImpl jp = build.getProject().getProperty(JobPropertyImpl.class);
+            if (jp==null || jp.getActiveItems(DownstreamPassCondition.class).isEmpty())
+                return;
+            DownstreamBuildIndex.get(build.getProject()).remove(build.getNumber());
+        }
+
+        /**
+         * Finds the build of the given upstream project that the given downstream build descends from.
+         *
+         * @return
+         *      null if no such relationship is recorded.
+         */
+        private AbstractBuild<?,?> findUpstreamBuild(AbstractBuild<?,?> build, AbstractProject<?,?> j, TaskListener listener) throws IOException {
+            AbstractBuild<?,?> u = build.getUpstreamRelationshipBuild(j);
+            if (u==null) {
+                // if the fingerprint doesn't tell us, perhaps the cause would tell us?
+                for (UpstreamCause uc : Util.filter(build.getCauses(), UpstreamCause.class)) {
+                    if (uc.getUpstreamProject().equals(j.getFullName())) {
+                        u = j.getBuildByNumber(uc.getUpstreamBuild());
+                        if (u!=null) {
+                            // remember that this build is a pseudo-downstream of the discovered build.
+                            PromotedBuildAction pba = PromotedBuildAction.getOrAttach(u);
+                            synchronized (pba) {
+                                List<PseudoDownstreamBuilds> pdbs = pba.getAttachments(PseudoDownstreamBuilds.class);
+                                PseudoDownstreamBuilds pdb;
+                                if (pdbs.isEmpty())
+                                    pba.addAttachment(pdb=new PseudoDownstreamBuilds());
+                                else
+                                    pdb = pdbs.get(0);
+                                pdb.add(build);
                             }
+                            // a fan-out of many downstream jobs completes in a burst, so coalesce the writes
+                            DeferredSaver.save(pba);
+                            break;
                         }
                     }
                 }
             }
+            if (u==null) {
+                // no upstream build. perhaps a configuration problem?
+                if(build.getResult()==Result.SUCCESS) {
+                    listener.getLogger().println("WARNING: "+j.getFullDisplayName()+" appears to use this job as a promotion criteria, " +
+                        "but no fingerprint is recorded. Fingerprint needs to be enabled on both this job and "+j.getFullDisplayName()+". " +
+                            "See http://hudson.gotdns.com/wiki/display/HUDSON/Fingerprint for more details");
+                }
+            }
+            return u;
         }
 
         /**
-         * List of downstream jobs that we are interested in.
+         * Full name of downstream jobs that we are interested in, to the active {@link PromotionProcess}es
+         * that use them in their {@link DownstreamPassCondition}. Processes of the same owner are adjacent.
+         *
+         * Null if the index needs to be rebuilt.
          */
         @CopyOnWrite
-        private static volatile Set<AbstractProject> DOWNSTREAM_JOBS = Collections.emptySet();
+        private static volatile Map<String,List<PromotionProcess>> DOWNSTREAM_JOBS = null;
+
+        /**
+         * Incremented every time {@link #DOWNSTREAM_JOBS} is invalidated, so that an index
+         * computed concurrently with a configuration change doesn't get published.
+         */
+        private static volatile int generation;
 
         /**
          * Called whenever some {@link JobPropertyImpl} changes to update {@link #DOWNSTREAM_JOBS}.
+         *
+         * <p>
+         * The index is rebuilt lazily by the next build completion, so calling this
+         * repeatedly (for example while jobs are being loaded) is cheap.
          */
         public static void rebuildCache() {
-            DOWNSTREAM_JOBS = new HashSet<AbstractProject>();
+            synchronized (RunListenerImpl.class) {
+                generation++;
+                DOWNSTREAM_JOBS = null;
+            }
+        }
+
+        /**
+         * Gets the active promotion processes that use the given job as a downstream promotion criteria.
+         *
+         * @return never null.
+         */
+        public static List<PromotionProcess> getInterestedProcesses(AbstractProject<?,?> job) {
+            Map<String,List<PromotionProcess>> index = DOWNSTREAM_JOBS;
+            if (index==null)
+                index = buildIndex();
+            List<PromotionProcess> r = index.get(job.getFullName());
+            if (r==null)    return Collections.emptyList();
+            return r;
+        }
+
+        private static Map<String,List<PromotionProcess>> buildIndex() {
+            int g = generation;
+
+            Map<String,List<PromotionProcess>> index = new HashMap<String,List<PromotionProcess>>();
+            for(AbstractProject<?,?> j : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+                JobPropertyImpl jp = j.getProperty(JobPropertyImpl.class);
+                if(jp==null)    continue;
+
+                for (PromotionProcess p : jp.getActiveItems(DownstreamPassCondition.class)) {
+                    Set<String> names = new HashSet<String>();
+                    for (PromotionCondition cond : p.conditions) {
+                        if (cond instanceof DownstreamPassCondition)
+                            names.addAll(((DownstreamPassCondition) cond).getJobNames());
+                    }
+                    for (String name : names) {
+                        List<PromotionProcess> l = index.get(name);
+                        if (l==null)
+                            index.put(name, l=new ArrayList<PromotionProcess>());
+                        l.add(p);
+                    }
+                }
+            }
+
+            synchronized (RunListenerImpl.class) {
+                if (g==generation)
+                    DOWNSTREAM_JOBS = index;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Invalidates {@link RunListenerImpl#DOWNSTREAM_JOBS} and the resolved {@link #getJobList()}
+     * when jobs are created, renamed or deleted.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            itemGeneration++;
+            RunListenerImpl.rebuildCache();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            itemGeneration++;
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            itemGeneration++;
+            RunListenerImpl.rebuildCache();
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            itemGeneration++;
+            RunListenerImpl.rebuildCache();
+            if (item instanceof AbstractProject)
+                DownstreamBuildIndex.forget((AbstractProject)item);
         }
     }
 
@@ -241,10 +666,15 @@ public class DownstreamPassCondition extends PromotionCondition {
      * the notion of fingerprints, in which case this works.
      */
     public static class PseudoDownstreamBuilds extends InvisibleAction {
-        final List<BuildPtr> builds = new ArrayList<BuildPtr>();
+        /**
+         * Replaced as a whole on update, as it may be serialized by {@link DeferredSaver} concurrently.
+         */
+        volatile List<BuildPtr> builds = new ArrayList<BuildPtr>();
 
-        public void add(AbstractBuild<?,?> run) {
-            builds.add(new BuildPtr(run));
+        public synchronized void add(AbstractBuild<?,?> run) {
+            List<BuildPtr> l = new ArrayList<BuildPtr>(builds);
+            l.add(new BuildPtr(run));
+            builds = l;
         }
 
         public List<AbstractBuild<?,?>> listBuilds(AbstractProject<?, ?> job) {
@@ -260,4 +690,6 @@ public class DownstreamPassCondition extends PromotionCondition {
             return list;
         }
     }
+
+    private static final Logger LOGGER = Logger.getLogger(DownstreamPassCondition.class.getName());
 }
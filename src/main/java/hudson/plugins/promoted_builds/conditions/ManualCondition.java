@@ -10,11 +10,13 @@ import hudson.model.InvisibleAction;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.User;
+import hudson.plugins.promoted_builds.DeferredSaver;
 import hudson.plugins.promoted_builds.PromotedBuildAction;
 import hudson.plugins.promoted_builds.PromotionBadge;
 import hudson.plugins.promoted_builds.PromotionCondition;
 import hudson.plugins.promoted_builds.PromotionConditionDescriptor;
 import hudson.plugins.promoted_builds.PromotionProcess;
+import hudson.plugins.promoted_builds.VerdictCache;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -82,7 +84,7 @@ public class ManualCondition extends PromotionCondition {
 
     @Override
     public PromotionBadge isMet(PromotionProcess promotionProcess, AbstractBuild<?,?> build) {
-        List<ManualApproval> approvals = build.getActions(ManualApproval.class);
+        List<ManualApproval> approvals = getApprovals(build);
 
         for (ManualApproval approval : approvals) {
             if (approval.name.equals(promotionProcess.getName()))
@@ -92,6 +94,11 @@ public class ManualCondition extends PromotionCondition {
         return null;
     }
 
+    @Override
+    public Cost getCost() {
+        return Cost.CHEAP;
+    }
+
     /**
      * Verifies that the currently logged in user (or anonymous) has permission
      * to approve the promotion and that the promotion has not already been
@@ -102,7 +109,7 @@ public class ManualCondition extends PromotionCondition {
             return false;
         }
         
-        List<ManualApproval> approvals = build.getActions(ManualApproval.class);
+        List<ManualApproval> approvals = getApprovals(build);
 
         // For now, only allow approvals if this wasn't already approved
         for (ManualApproval approval : approvals) {
@@ -113,6 +120,17 @@ public class ManualCondition extends PromotionCondition {
         return true;
     }
 
+    /**
+     * Gets the approvals given to the build, including those recorded as build actions by older versions.
+     */
+    private static List<ManualApproval> getApprovals(AbstractBuild<?,?> build) {
+        List<ManualApproval> approvals = new ArrayList<ManualApproval>(build.getActions(ManualApproval.class));
+        PromotedBuildAction pba = build.getAction(PromotedBuildAction.class);
+        if (pba!=null)
+            approvals.addAll(pba.getAttachments(ManualApproval.class));
+        return approvals;
+    }
+
     /*
      * Check if user is listed in user list as a specific user
      */
@@ -171,8 +189,10 @@ public class ManualCondition extends PromotionCondition {
             }
 
             // add approval to build
-            build.addAction(new ManualApproval(promotionName, paramValues));
-            build.save();
+            pba = PromotedBuildAction.getOrAttach(build);
+            pba.addAttachment(new ManualApproval(promotionName, paramValues));
+            DeferredSaver.save(pba);
+            VerdictCache.invalidate(build.getProject());
 
             // check for promotion
             promotionProcess.considerPromotion2(build);
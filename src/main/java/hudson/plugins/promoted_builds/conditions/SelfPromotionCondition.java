@@ -33,10 +33,10 @@ import hudson.plugins.promoted_builds.JobPropertyImpl;
 import hudson.plugins.promoted_builds.PromotionBadge;
 import hudson.plugins.promoted_builds.PromotionCondition;
 import hudson.plugins.promoted_builds.PromotionConditionDescriptor;
+import hudson.plugins.promoted_builds.PromotionEvaluator;
 import hudson.plugins.promoted_builds.PromotionProcess;
 import org.kohsuke.stapler.DataBoundConstructor;
 
-import java.io.IOException;
 
 /**
  * {@link PromotionCondition} that promotes a build as soon as it's done.
@@ -64,6 +64,11 @@ public class SelfPromotionCondition extends PromotionCondition {
         return null;
     }
 
+    @Override
+    public Cost getCost() {
+        return Cost.CHEAP;
+    }
+
     /**
      * {@link RunListener} to pick up completions of a build.
      *
@@ -81,18 +86,8 @@ public class SelfPromotionCondition extends PromotionCondition {
         public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
             JobPropertyImpl jp = build.getProject().getProperty(JobPropertyImpl.class);
             if(jp!=null) {
-                for (PromotionProcess p : jp.getItems()) {
-                    for (PromotionCondition cond : p.conditions) {
-                        if (cond instanceof SelfPromotionCondition) {
-                            try {
-                                p.considerPromotion2(build);
-                                break; // move on to the next process
-                            } catch (IOException e) {
-                                e.printStackTrace(listener.error("Failed to promote a build"));
-                            }
-                        }
-                    }
-                }
+                for (PromotionProcess p : jp.getActiveItems(SelfPromotionCondition.class))
+                    PromotionEvaluator.schedule(p, build);
             }
         }
     }
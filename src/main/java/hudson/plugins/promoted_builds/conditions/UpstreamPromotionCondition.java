@@ -75,6 +75,11 @@ public class UpstreamPromotionCondition extends PromotionCondition {
         return requiredPromotions.isEmpty() ? badge : null;
     }
 
+    @Override
+    public Cost getCost() {
+        return Cost.CHEAP;
+    }
+
     public static final class Badge extends PromotionBadge {
         public final List<String> promotions = new ArrayList<String>(3);
 
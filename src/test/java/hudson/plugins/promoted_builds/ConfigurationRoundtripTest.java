@@ -23,10 +23,13 @@
  */
 package hudson.plugins.promoted_builds;
 
+import com.gargoylesoftware.htmlunit.html.HtmlForm;
 import hudson.model.FreeStyleProject;
 import hudson.plugins.promoted_builds.conditions.DownstreamPassCondition;
 import hudson.tasks.JavadocArchiver;
 
+import java.lang.reflect.Field;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -64,4 +67,63 @@ public class ConfigurationRoundtripTest extends PromotionTestCase {
         assertTrue(ja.isKeepAll());
         assertEquals("star-blue", proc.icon);
     }
+
+    /**
+     * Submitting the job configuration updates the existing processes rather than replacing them.
+     */
+    public void testReconfigureInPlace() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        JobPropertyImpl pp = new JobPropertyImpl(p);
+        p.addProperty(pp);
+        PromotionProcess proc = pp.addProcess("test");
+        proc.icon = "star-blue";
+
+        HtmlForm form = new WebClient().getPage(p,"configure").getFormByName("config");
+        submit(form);
+
+        assertSame(pp, p.getProperty(JobPropertyImpl.class));
+        assertSame(proc, pp.getItem("test"));
+        assertEquals("star-blue", proc.icon);
+
+        // changed by some other means, then the same form is submitted again
+        proc.icon = "star-red";
+        proc.save();
+        submit(form);
+
+        assertSame(proc, pp.getItem("test"));
+        assertEquals("star-blue", proc.icon);
+    }
+
+    /**
+     * Submitting the job configuration doesn't load the inactive processes.
+     */
+    public void testInactiveNotLoaded() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("p");
+        JobPropertyImpl pp = new JobPropertyImpl(p);
+        p.addProperty(pp);
+        pp.addProcess("test").save();
+        pp.addProcess("old").save();
+
+        // make "old" inactive
+        p.removeProperty(pp);
+        pp = new JobPropertyImpl(p);
+        p.addProperty(pp);
+        pp.addProcess("test").save();
+        hudson.reload();
+
+        p = (FreeStyleProject)hudson.getItem("p");
+        pp = p.getProperty(JobPropertyImpl.class);
+        submit(new WebClient().getPage(p,"configure").getFormByName("config"));
+        assertNotNull(getDeferred(pp));
+
+        // until it's asked for
+        assertNotNull(pp.getItem("old"));
+        assertNull(getDeferred(pp));
+    }
+
+    private static Object getDeferred(JobPropertyImpl pp) throws Exception {
+        Field f = JobPropertyImpl.class.getDeclaredField("deferred");
+        f.setAccessible(true);
+        return f.get(pp);
+    }
 }
@@ -0,0 +1,56 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.Saveable;
+
+public class DeferredSaverTest extends PromotionTestCase {
+    /**
+     * Counts how many times it's saved.
+     */
+    private static final class CountingSaveable implements Saveable {
+        volatile int count;
+
+        public void save() {
+            count++;
+        }
+    }
+
+    public void testCoalescing() throws Exception {
+        CountingSaveable s = new CountingSaveable();
+        CountingSaveable t = new CountingSaveable();
+        long requested = DeferredSaver.getRequestCount();
+
+        DeferredSaver.save(s);
+        DeferredSaver.save(t);
+        DeferredSaver.save(s);
+        DeferredSaver.save(s);
+        assertEquals(requested+4, DeferredSaver.getRequestCount());
+        assertEquals(0, s.count);
+
+        // written right away when asked for, and only if it's pending
+        assertTrue(DeferredSaver.flush(s));
+        assertEquals(1, s.count);
+        assertFalse(DeferredSaver.flush(s));
+        assertEquals(1, s.count);
+
+        // the rest is written once the delay is over
+        for (int i=0; t.count==0; i++) {
+            assertTrue("the deferred save is taking too long", i<100);
+            Thread.sleep(100);
+        }
+        assertEquals(1, t.count);
+        assertEquals(1, s.count);
+    }
+
+    /**
+     * Nothing pending is lost when Hudson shuts down.
+     */
+    public void testFlushOnStop() throws Exception {
+        CountingSaveable s = new CountingSaveable();
+        DeferredSaver.save(s);
+        DeferredSaver.save(s);
+
+        new PluginImpl().stop();
+        assertEquals(1, s.count);
+        assertFalse(DeferredSaver.flush(s));
+    }
+}
@@ -0,0 +1,54 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.FreeStyleProject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class JobPropertyImplTest extends PromotionTestCase {
+    private static final int PROCESSES = 20;
+
+    /**
+     * Processes are loaded in the background at startup, and accessors called in the mean time
+     * need to wait for them rather than see a partial list.
+     */
+    public void testConcurrentAccessDuringLoad() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("p");
+        JobPropertyImpl jp = new JobPropertyImpl(p);
+        p.addProperty(jp);
+        for (int i=0; i<PROCESSES; i++)
+            jp.addProcess("promo"+i).save();
+        p.save();
+
+        hudson.reload();
+        final JobPropertyImpl reloaded = hudson.getItemByFullName("p",FreeStyleProject.class).getProperty(JobPropertyImpl.class);
+        assertNotSame(jp, reloaded);
+
+        // hit it from many threads at once, as requests would right after startup
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i=0; i<32; i++) {
+                final boolean byName = i%2==0;
+                results.add(es.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        if (byName)
+                            return reloaded.getItem("promo"+(PROCESSES-1))!=null ? PROCESSES : -1;
+                        return reloaded.getActiveItems().size();
+                    }
+                }));
+            }
+            for (Future<Integer> f : results)
+                assertEquals(PROCESSES, f.get().intValue());
+        } finally {
+            es.shutdown();
+        }
+
+        assertEquals(PROCESSES, reloaded.getItems().size());
+        assertTrue(JobPropertyImpl.getLoadedProcessCount()>=PROCESSES);
+    }
+}
@@ -0,0 +1,29 @@
+package hudson.plugins.promoted_builds;
+
+import java.util.Arrays;
+
+public class LabelPrefixIndexTest extends PromotionTestCase {
+    public void testFind() throws Exception {
+        createSlave("linux-x86 linux-amd64 windows", null);
+        LabelPrefixIndex.invalidate();
+
+        LabelPrefixIndex index = LabelPrefixIndex.get();
+        assertEquals(Arrays.asList("linux-amd64","linux-x86"), index.find("linux", 10));
+        assertEquals(Arrays.asList("linux-amd64"), index.find("linux", 1));
+        assertEquals(Arrays.asList("windows"), index.find("windows", 10));
+        assertTrue(index.find("mac", 10).isEmpty());
+        assertTrue(index.find("linux-x86-64", 10).isEmpty());
+
+        // the same index is used until it expires
+        assertSame(index, LabelPrefixIndex.get());
+        createSlave("linux-arm", null);
+        long ttl = LabelPrefixIndex.TTL;
+        LabelPrefixIndex.TTL = -1;
+        try {
+            index = LabelPrefixIndex.get();
+        } finally {
+            LabelPrefixIndex.TTL = ttl;
+        }
+        assertEquals(Arrays.asList("linux-amd64","linux-arm","linux-x86"), index.find("linux", 10));
+    }
+}
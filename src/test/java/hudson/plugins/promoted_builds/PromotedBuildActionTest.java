@@ -3,6 +3,9 @@ package hudson.plugins.promoted_builds;
 import hudson.model.Cause.UserCause;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.util.TextFile;
+
+import java.io.File;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -32,4 +35,17 @@ public class PromotedBuildActionTest extends PromotionTestCase {
 //            }
 //        }
     }
+
+    /**
+     * build.xml records the action as soon as it's attached, without waiting for a deferred save.
+     */
+    public void testAttachSavesBuild() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0));
+        File f = new File(b.getRootDir(),"build.xml");
+        assertFalse(new TextFile(f).read().contains("PromotedBuildAction"));
+
+        PromotedBuildAction.getOrAttach(b);
+        assertTrue(new TextFile(f).read().contains("PromotedBuildAction"));
+    }
 }
@@ -0,0 +1,106 @@
+package hudson.plugins.promoted_builds;
+
+import com.gargoylesoftware.htmlunit.Page;
+import hudson.model.Cause.UserCause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.plugins.promoted_builds.conditions.ManualCondition;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class PromotedProjectActionTest extends PromotionTestCase {
+    public void testHistory() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("p");
+        JobPropertyImpl jp = new JobPropertyImpl(p);
+        p.addProperty(jp);
+        PromotionProcess proc = jp.addProcess("promo");
+        // so that builds don't get promoted on their own
+        proc.conditions.add(new ManualCondition());
+
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        Promotion pr = assertBuildStatusSuccess(
+                proc.promote2(b, new UserCause(), new Status(proc, Collections.<PromotionBadge>emptyList())).get());
+
+        JSONObject o = JSONObject.fromObject(get("job/p/promotion/history?process=promo", 200));
+        assertEquals("promo", o.getString("process"));
+        assertEquals(JSONNull.getInstance(), o.get("next"));
+        JSONArray promotions = o.getJSONArray("promotions");
+        assertEquals(1, promotions.size());
+        assertEquals(pr.getNumber(), promotions.getJSONObject(0).getInt("number"));
+        assertEquals(b.getNumber(), promotions.getJSONObject(0).getInt("target"));
+        assertEquals("SUCCESS", promotions.getJSONObject(0).getString("result"));
+
+        // a full page has a cursor to the next one
+        o = JSONObject.fromObject(get("job/p/promotion/history?process=promo&limit=1", 200));
+        assertEquals(pr.getNumber(), o.getInt("next"));
+
+        get("job/p/promotion/history?process=nosuch", 404);
+        // not a number, or out of range
+        get("job/p/promotion/history?process=promo&from=x", 400);
+        get("job/p/promotion/history?process=promo&cursor=4294967296", 400);
+        get("job/p/promotion/history?process=promo&limit=0", 400);
+    }
+
+    /**
+     * The lifecycle of a promotion can be followed through the event stream.
+     */
+    public void testEvents() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("p");
+        JobPropertyImpl jp = new JobPropertyImpl(p);
+        p.addProperty(jp);
+        PromotionProcess proc = jp.addProcess("promo");
+        proc.conditions.add(new ManualCondition());
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+
+        // nothing yet
+        JSONObject o = JSONObject.fromObject(get("job/p/promotion/events?timeout=0", 200));
+        assertTrue(o.getJSONArray("events").isEmpty());
+        long since = o.getLong("next");
+
+        // a waiting client is woken up by the first event
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Future<PromotionEvents.Page> waiting = es.submit(new Callable<PromotionEvents.Page>() {
+            public PromotionEvents.Page call() throws Exception {
+                return PromotionEvents.await(0, "p", "promo", 60*1000);
+            }
+        });
+        es.shutdown();
+        Thread.sleep(500);
+        assertFalse(waiting.isDone());
+        Promotion pr = assertBuildStatusSuccess(
+                proc.promote2(b, new UserCause(), new Status(proc, Collections.<PromotionBadge>emptyList())).get());
+        assertEquals(PromotionEvents.Type.QUALIFIED, waiting.get().events.get(0).type);
+
+        o = JSONObject.fromObject(get("job/p/promotion/events?timeout=0&since="+since, 200));
+        JSONArray events = o.getJSONArray("events");
+        String[] types = {"QUALIFIED", "QUEUED", "STARTED", "SUCCEEDED"};
+        assertEquals(types.length, events.size());
+        for (int i=0; i<types.length; i++) {
+            JSONObject e = events.getJSONObject(i);
+            assertEquals(types[i], e.getString("type"));
+            assertEquals("promo", e.getString("process"));
+            assertEquals(b.getNumber(), e.getInt("target"));
+        }
+        assertEquals(pr.getNumber(), events.getJSONObject(3).getInt("promotion"));
+        assertFalse(o.getBoolean("missed"));
+
+        // filtered by process
+        o = JSONObject.fromObject(get("job/p/promotion/events?timeout=0&process=nosuch&since="+since, 200));
+        assertTrue(o.getJSONArray("events").isEmpty());
+    }
+
+    private String get(String url, int status) throws Exception {
+        WebClient wc = new WebClient();
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        Page page = wc.getPage(wc.getContextPath()+url);
+        assertEquals(url, status, page.getWebResponse().getStatusCode());
+        return page.getWebResponse().getContentAsString();
+    }
+}
@@ -0,0 +1,83 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.AbstractBuild;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PromotionEvaluatorTest extends PromotionTestCase {
+    /**
+     * Requests that come in while the build is being evaluated don't evaluate it concurrently,
+     * and the build is promoted only once.
+     */
+    public void testNoConcurrentEvaluation() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+
+        JobPropertyImpl jp = new JobPropertyImpl(p);
+        p.addProperty(jp);
+        PromotionProcess proc = jp.addProcess("promo");
+        BlockingCondition cond = new BlockingCondition();
+        proc.conditions.add(cond);
+
+        long evaluations = PromotionEvaluator.getEvaluationCount();
+        assertTrue(PromotionEvaluator.schedule(proc, b));
+        assertTrue(cond.entered.await(10, TimeUnit.SECONDS));
+
+        // merged into the one in progress
+        assertFalse(PromotionEvaluator.schedule(proc, b));
+        assertFalse(PromotionEvaluator.schedule(proc, b));
+        cond.release.countDown();
+
+        // the first evaluation, and one more for the requests that came in meanwhile
+        for (int i=0; PromotionEvaluator.getEvaluationCount()<evaluations+2; i++) {
+            assertTrue("the evaluation is taking too long", i<100);
+            Thread.sleep(100);
+        }
+        waitUntilNoActivity();
+
+        assertEquals(1, cond.maxConcurrency.get());
+        assertEquals(1, proc.getBuilds().size());
+        assertEquals(1, jp.getJournal().getStatistics("promo").qualified);
+        // it's all done, so the next request is evaluated on its own
+        assertTrue(PromotionEvaluator.schedule(proc, b));
+    }
+
+    /**
+     * Holds the first evaluation until it's released, and keeps track of how many run at once.
+     */
+    private static class BlockingCondition extends PromotionCondition {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger concurrency = new AtomicInteger();
+        final AtomicInteger maxConcurrency = new AtomicInteger();
+
+        @Override
+        public PromotionBadge isMet(PromotionProcess promotionProcess, AbstractBuild<?,?> build) {
+            int n = concurrency.incrementAndGet();
+            try {
+                if (n>maxConcurrency.get())
+                    maxConcurrency.set(n);
+                entered.countDown();
+                if (!release.await(10, TimeUnit.SECONDS))
+                    throw new AssertionError("never released");
+                return new Badge();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            } finally {
+                concurrency.decrementAndGet();
+            }
+        }
+
+        @Override
+        public PromotionConditionDescriptor getDescriptor() {
+            return null;
+        }
+    }
+
+    public static class Badge extends PromotionBadge {
+    }
+}
@@ -0,0 +1,139 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.Cause.UserCause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.util.TextFile;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+public class PromotionHistoryTest extends PromotionTestCase {
+    /**
+     * Enough that the history doesn't get read in one go.
+     */
+    private static final int N = 500;
+
+    private FreeStyleProject p;
+    private FreeStyleBuild b1;
+    private JobPropertyImpl jp;
+    private PromotionProcess proc;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        p = createFreeStyleProject();
+        b1 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        jp = new JobPropertyImpl(p);
+        p.addProperty(jp);
+        proc = jp.addProcess("promo");
+
+        // promotion #n started at n seconds, the first half promoted build #1 and the rest build #2,
+        // and the last few failed
+        StringBuilder journal = new StringBuilder();
+        StringBuilder history = new StringBuilder();
+        for (int n=1; n<=N; n++) {
+            int target = n<=N/2 ? 1 : 2;
+            Result r = n>N-30 ? Result.FAILURE : Result.SUCCESS;
+            journal.append(n*1000L).append(" QUALIFIED ").append(target).append(" 0 - promo\n");
+            journal.append(n*1000L).append(" STARTED ").append(target).append(' ').append(n).append(" - promo\n");
+            journal.append(n*1000L+500).append(" COMPLETED ").append(target).append(' ').append(n).append(' ').append(r).append(" promo\n");
+            history.append(new PromotionHistory.Entry(n, target, n*1000L, r)).append('\n');
+        }
+        new TextFile(new File(jp.getRootDir(),"journal.snapshot")).write(journal.toString());
+        new TextFile(getHistoryFile()).write(history.toString());
+    }
+
+    public void testPaging() throws Exception {
+        PromotionHistory h = proc.getHistory();
+
+        assertNumbers(h.getLatest(3), N, N-1, N-2);
+        assertEquals(N, h.getLast().getNumber());
+        assertEquals(N-30, h.getLastSuccessful().getNumber());
+
+        // before
+        assertNumbers(h.getPage(100, 0, Long.MAX_VALUE, 3), 99, 98, 97);
+        assertNumbers(h.getPage(3, 0, Long.MAX_VALUE, 10), 2, 1);
+        // from and to
+        assertNumbers(h.getPage(Integer.MAX_VALUE, 200*1000L, 203*1000L, 10), 202, 201, 200);
+        // limit
+        assertNumbers(h.getPage(Integer.MAX_VALUE, 200*1000L, 203*1000L, 2), 202, 201);
+        // nothing before #100 is that recent
+        assertNumbers(h.getPage(100, 200*1000L, Long.MAX_VALUE, 10));
+
+        assertEquals(N, h.getAll().size());
+    }
+
+    /**
+     * The journal is what counts, so the history is rebuilt from it if they disagree.
+     */
+    public void testJournalWins() throws Exception {
+        TextFile f = new TextFile(getHistoryFile());
+        String s = f.read();
+        // the last line never made it
+        f.write(s.substring(0, s.lastIndexOf('\n', s.length()-2)+1));
+
+        PromotionHistory h = new PromotionHistory(proc);
+        assertEquals(N, h.getLast().getNumber());
+        assertEquals(N, h.getAll().size());
+        assertEquals(s, f.read());
+    }
+
+    /**
+     * Deleting a build of the owner project drops its promotions from the history.
+     */
+    public void testTargetDeleted() throws Exception {
+        b1.delete();
+
+        assertEquals(N/2, proc.getHistory().getAll().size());
+        assertNumbers(proc.getHistory().getPage(N/2+2, 0, Long.MAX_VALUE, 10), N/2+1);
+
+        PromotionHistory h = new PromotionHistory(proc);
+        assertEquals(N/2, h.getAll().size());
+    }
+
+    /**
+     * The latest successful promotion is read from its pointer, and kept up to date.
+     */
+    public void testLastSuccessful() throws Exception {
+        File f = new File(proc.getRootDir(),"lastSuccessful");
+        assertEquals(N-30, new PromotionHistory(proc).getLastSuccessful().getNumber());
+        assertTrue(f.exists());
+
+        // it's the pointer that counts, not the history
+        new TextFile(f).write(new PromotionHistory.Entry(7, 1, 7000, Result.SUCCESS).toString());
+        PromotionHistory h = proc.getHistory();
+        assertEquals(7, h.getLastSuccessful().getNumber());
+
+        // which is fixed up once the build it points to goes away
+        b1.delete();
+        assertEquals(N-30, h.getLastSuccessful().getNumber());
+    }
+
+    /**
+     * The latest promotion of the project page is found without reading the whole history.
+     */
+    public void testLatestOfLongHistory() throws Exception {
+        proc.updateNextBuildNumber(N+1);
+        FreeStyleBuild b2 = p.getBuildByNumber(2);
+        Promotion pr = assertBuildStatusSuccess(
+                proc.promote2(b2, new UserCause(), new Status(proc, Collections.<PromotionBadge>emptyList())).get());
+        assertEquals(N+1, pr.getNumber());
+
+        assertEquals(pr, new PromotedProjectAction(p, jp).getLatest(proc));
+        assertFalse(proc.getHistory().isFullyRead());
+    }
+
+    private File getHistoryFile() {
+        return new File(proc.getRootDir(),"history.log");
+    }
+
+    private static void assertNumbers(List<PromotionHistory.Entry> entries, int... numbers) {
+        assertEquals(numbers.length, entries.size());
+        for (int i=0; i<numbers.length; i++)
+            assertEquals(numbers[i], entries.get(i).getNumber());
+    }
+}
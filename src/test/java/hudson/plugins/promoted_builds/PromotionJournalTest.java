@@ -0,0 +1,88 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.Cause.UserCause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.util.TextFile;
+
+import java.io.File;
+import java.util.Collections;
+
+public class PromotionJournalTest extends PromotionTestCase {
+    /**
+     * Crashed right after writing the snapshot, so that the journal repeats it,
+     * and then again in the middle of appending a record.
+     */
+    public void testReplayAfterCrash() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        JobPropertyImpl jp = new JobPropertyImpl(p);
+        p.addProperty(jp);
+        FreeStyleBuild b1 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+
+        File dir = jp.getRootDir();
+        dir.mkdirs();
+        String snapshot =
+                "1000 QUALIFIED 1 0 - promo\n"+
+                "1000 STARTED 1 1 - promo\n"+
+                "2000 COMPLETED 1 1 SUCCESS promo\n";
+        new TextFile(new File(dir,"journal.snapshot")).write(snapshot);
+        File log = new File(dir,"journal.log");
+        new TextFile(log).write(snapshot+
+                "3000 QUALIFIED 2 0 - promo\n"+
+                "3000 STARTED 2 2 - pro");
+
+        PromotionJournal j = new PromotionJournal(jp);
+        assertTrue(j.isComplete());
+        assertEquals(2, j.getLastQualified("promo"));
+        assertEquals(1, j.getCompleted("promo").size());
+        PromotionJournal.Statistics s = j.getStatistics("promo");
+        assertEquals(2, s.qualified);
+        assertEquals(1, s.attempts);
+        assertEquals(1, s.succeeded);
+        assertEquals(1000, s.averageDuration);
+        // the torn record isn't mistaken for one of a process called "pro"
+        assertEquals(0, j.getStatistics("pro").attempts);
+
+        // the next record isn't lost to the partial line, and it's the one that triggers the compaction
+        int threshold = PromotionJournal.COMPACT_THRESHOLD;
+        PromotionJournal.COMPACT_THRESHOLD = 5;
+        try {
+            j.deleted(b1);
+        } finally {
+            PromotionJournal.COMPACT_THRESHOLD = threshold;
+        }
+        assertFalse(log.exists());
+        assertFalse(new TextFile(new File(dir,"journal.snapshot")).read().contains(" pro\n"));
+
+        j = new PromotionJournal(jp);
+        assertEquals(2, j.getLastQualified("promo"));
+        assertTrue(j.getCompleted("promo").isEmpty());
+        assertEquals(1, j.getStatistics("promo").qualified);
+        assertEquals(0, j.getStatistics("pro").attempts);
+    }
+
+    /**
+     * A lost journal is reconstructed from the build records in the background.
+     */
+    public void testRebuild() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        JobPropertyImpl jp = new JobPropertyImpl(p);
+        p.addProperty(jp);
+        PromotionProcess proc = jp.addProcess("promo");
+        Promotion pr = assertBuildStatusSuccess(
+                proc.promote2(b, new UserCause(), new Status(proc, Collections.<PromotionBadge>emptyList())).get());
+
+        new File(jp.getRootDir(),"journal.snapshot").delete();
+        new File(jp.getRootDir(),"journal.log").delete();
+
+        PromotionJournal j = new PromotionJournal(jp);
+        for (int i=0; !j.isComplete(); i++) {
+            assertTrue("the rebuild is taking too long", i<100);
+            Thread.sleep(100);
+        }
+        assertEquals(b.getNumber(), j.getLastQualified("promo"));
+        assertEquals(pr.getNumber(), j.getCompleted("promo").get(0).getNumber());
+        assertTrue(new File(jp.getRootDir(),"journal.snapshot").exists());
+    }
+}
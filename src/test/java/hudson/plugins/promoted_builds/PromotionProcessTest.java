@@ -1,16 +1,26 @@
 package hudson.plugins.promoted_builds;
 
+import hudson.model.AbstractBuild;
+import hudson.model.Cause.UserCause;
 import hudson.model.FreeStyleBuild;
 import hudson.model.Result;
 import hudson.model.FreeStyleProject;
 import hudson.plugins.promoted_builds.conditions.DownstreamPassCondition;
+import hudson.plugins.promoted_builds.conditions.ManualCondition;
 import hudson.tasks.Recorder;
 import hudson.tasks.ArtifactArchiver;
 import hudson.tasks.BuildTrigger;
 import hudson.tasks.Fingerprinter;
 import hudson.tasks.Shell;
+import hudson.util.TextFile;
+
+import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -103,6 +113,182 @@ public class PromotionProcessTest extends PromotionTestCase {
         }
     }
 
+    /**
+     * The builds of the last promotion used to be kept in config.xml in their entirety.
+     */
+    public void testLastPromotedBuildsMigration() throws Exception {
+        FreeStyleProject p = createFreeStyleProject("p");
+        JobPropertyImpl promotion = new JobPropertyImpl(p);
+        p.addProperty(promotion);
+        promotion.addProcess("promo").save();
+
+        File config = new File(promotion.getRootDirFor("promo"),"config.xml");
+        String xml = new TextFile(config).read();
+        int end = xml.lastIndexOf("</");
+        new TextFile(config).write(xml.substring(0,end)+
+                "  <lastPromotedBuilds>\n"+
+                "    <hudson.model.FreeStyleBuild><number>3</number></hudson.model.FreeStyleBuild>\n"+
+                "    <hudson.model.FreeStyleBuild><number>5</number></hudson.model.FreeStyleBuild>\n"+
+                "    <hudson.model.FreeStyleBuild><number>4</number></hudson.model.FreeStyleBuild>\n"+
+                "  </lastPromotedBuilds>\n"+
+                xml.substring(end));
+        hudson.reload();
+
+        PromotionProcess proc = ((FreeStyleProject)hudson.getItem("p")).getProperty(JobPropertyImpl.class).getItem("promo");
+        assertEquals(BuildNumberSet.of(3,4,5), proc.getLastPromotedBuilds());
+        assertEquals("3 4 5", new TextFile(new File(proc.getRootDir(),"lastPromotedBuilds")).read());
+        assertFalse(new TextFile(config).read().contains("lastPromotedBuilds"));
+    }
+
+    /**
+     * The permalink follows a persisted pointer, which is kept up to date as builds are promoted and deleted.
+     */
+    public void testPermalink() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        JobPropertyImpl promotion = new JobPropertyImpl(p);
+        p.addProperty(promotion);
+        PromotionProcess proc = promotion.addProcess("promo");
+        // so that builds don't get promoted on their own
+        proc.conditions.add(new ManualCondition());
+        File pointer = new File(proc.getRootDir(),"lastPromoted");
+
+        FreeStyleBuild b1 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        FreeStyleBuild b2 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        FreeStyleBuild b3 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        assertNull(proc.asPermalink().resolve(p));
+
+        promote(proc, b1);
+        promote(proc, b2);
+        assertSame(b2, proc.asPermalink().resolve(p));
+        assertEquals("2", new TextFile(pointer).readTrim());
+
+        b2.delete();
+        assertSame(b1, proc.asPermalink().resolve(p));
+        assertEquals("1", new TextFile(pointer).readTrim());
+
+        promote(proc, b3);
+        assertSame(b3, proc.asPermalink().resolve(p));
+        assertEquals("3", new TextFile(pointer).readTrim());
+    }
+
+    /**
+     * Promotions are known to be in the queue from the time they are scheduled until they start or get cancelled.
+     */
+    public void testInQueue() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        JobPropertyImpl promotion = new JobPropertyImpl(p);
+        p.addProperty(promotion);
+        PromotionProcess proc = promotion.addProcess("promo");
+        proc.conditions.add(new ManualCondition());
+        FreeStyleBuild b1 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        FreeStyleBuild b2 = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        assertFalse(proc.isInQueue(b1));
+
+        // no node has this label, so it stays in the queue
+        proc.assignedLabel = "nosuch";
+        Future<Promotion> f = proc.scheduleBuild2(b1, new UserCause());
+        assertTrue(proc.isInQueue(b1));
+        assertFalse(proc.isInQueue(b2));
+
+        hudson.getQueue().cancel(proc);
+        assertTrue(f.isCancelled());
+        assertFalse(proc.isInQueue(b1));
+
+        proc.assignedLabel = null;
+        assertBuildStatusSuccess(proc.scheduleBuild2(b2, new UserCause()).get());
+        assertFalse(proc.isInQueue(b2));
+    }
+
+    /**
+     * Cheap conditions are evaluated first, and the expensive ones together, if so configured.
+     */
+    public void testExpensiveConditions() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        JobPropertyImpl promotion = new JobPropertyImpl(p);
+        p.addProperty(promotion);
+        PromotionProcess proc = promotion.addProcess("promo");
+
+        boolean parallel = PromotionProcess.PARALLEL_CONDITIONS;
+        PromotionProcess.PARALLEL_CONDITIONS = true;
+        try {
+            // they only get past the barrier if they run at the same time
+            CyclicBarrier barrier = new CyclicBarrier(2);
+            TestCondition e1 = new TestCondition(PromotionCondition.Cost.EXPENSIVE, true, barrier);
+            TestCondition cheap = new TestCondition(PromotionCondition.Cost.CHEAP, false, null);
+            TestCondition e2 = new TestCondition(PromotionCondition.Cost.EXPENSIVE, true, barrier);
+            proc.conditions.replaceBy(Arrays.asList(e1, cheap, e2));
+
+            assertNull(proc.isMet(b));
+            assertEquals(1, cheap.count);
+            assertEquals(0, e1.count);
+            assertEquals(0, e2.count);
+
+            cheap = new TestCondition(PromotionCondition.Cost.CHEAP, true, null);
+            proc.conditions.replaceBy(Arrays.asList(e1, cheap, e2));
+            Status s = proc.isMet(b);
+            assertNotNull(s);
+            assertEquals(1, e1.count);
+            assertEquals(1, e2.count);
+            // in the order of the conditions
+            List<PromotionBadge> badges = s.getBadges();
+            assertSame(e1, ((TestBadge)badges.get(0)).condition);
+            assertSame(cheap, ((TestBadge)badges.get(1)).condition);
+            assertSame(e2, ((TestBadge)badges.get(2)).condition);
+        } finally {
+            PromotionProcess.PARALLEL_CONDITIONS = parallel;
+        }
+    }
+
+    private static final class TestCondition extends PromotionCondition {
+        private final Cost cost;
+        private final boolean met;
+        private transient final CyclicBarrier barrier;
+        transient volatile int count;
+
+        TestCondition(Cost cost, boolean met, CyclicBarrier barrier) {
+            this.cost = cost;
+            this.met = met;
+            this.barrier = barrier;
+        }
+
+        @Override
+        public PromotionBadge isMet(PromotionProcess promotionProcess, AbstractBuild<?,?> build) {
+            count++;
+            if (barrier!=null) {
+                try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+            return met ? new TestBadge(this) : null;
+        }
+
+        @Override
+        public Cost getCost() {
+            return cost;
+        }
+
+        @Override
+        public PromotionConditionDescriptor getDescriptor() {
+            return null;
+        }
+    }
+
+    private static final class TestBadge extends PromotionBadge {
+        private transient final TestCondition condition;
+
+        TestBadge(TestCondition condition) {
+            this.condition = condition;
+        }
+    }
+
+    private void promote(PromotionProcess proc, FreeStyleBuild b) throws Exception {
+        assertBuildStatusSuccess(
+                proc.promote2(b, new UserCause(), new Status(proc, Collections.<PromotionBadge>emptyList())).get());
+    }
+
     private void waitForCompletion(FreeStyleProject down, int n) throws InterruptedException {
         // wait for the build completion
         while (down.getBuildByNumber(n)==null)
@@ -0,0 +1,54 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.Cause.UserCause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.plugins.promoted_builds.conditions.FixedResultBuilder;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+
+public class StatusTest extends PromotionTestCase {
+    /**
+     * Attempts made before the summary was recorded are still found after the upgrade.
+     */
+    public void testSummaryOnUpgradedData() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        // built before there's a process, so that it's not promoted on its own
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        JobPropertyImpl promotion = new JobPropertyImpl(p);
+        p.addProperty(promotion);
+        PromotionProcess proc = promotion.addProcess("promo");
+        proc.getBuildSteps().add(new FixedResultBuilder(Result.FAILURE));
+
+        Promotion failed = assertBuildStatus(Result.FAILURE,
+                proc.promote2(b, new UserCause(), new Status(proc, Collections.<PromotionBadge>emptyList())).get());
+
+        // make it look like the data of an older version
+        Status s = b.getAction(PromotedBuildAction.class).getPromotion("promo");
+        set(s, "summarySeeded", false);
+        set(s, "lastAttempt", 0);
+        set(s, "lastFailed", 0);
+        set(s, "lastResult", null);
+        set(s, "lastTimestamp", 0L);
+
+        assertEquals(failed.getNumber(), s.getLastFailed().getNumber());
+        assertNull(s.getLastSuccessful());
+
+        proc.getBuildSteps().clear();
+        Promotion succeeded = assertBuildStatusSuccess(proc.scheduleBuild2(b, new UserCause()).get());
+
+        // the summary is in use now, and it knows about the earlier failure
+        assertEquals(Result.SUCCESS, s.getLastResult());
+        assertEquals(failed.getNumber(), s.getLastFailed().getNumber());
+        assertEquals(succeeded.getNumber(), s.getLastSuccessful().getNumber());
+        assertEquals(succeeded.getNumber(), s.getLast().getNumber());
+    }
+
+    private static void set(Object o, String name, Object value) throws Exception {
+        Field f = o.getClass().getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(o, value);
+    }
+}
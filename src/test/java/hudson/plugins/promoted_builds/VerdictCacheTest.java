@@ -0,0 +1,63 @@
+package hudson.plugins.promoted_builds;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Descriptor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+
+public class VerdictCacheTest extends PromotionTestCase {
+    /**
+     * Counts how many times it's evaluated.
+     */
+    private static final class CountingCondition extends PromotionCondition {
+        int count;
+
+        @Override
+        public PromotionBadge isMet(PromotionProcess promotionProcess, AbstractBuild<?,?> build) {
+            count++;
+            return null;
+        }
+
+        public Descriptor<PromotionCondition> getDescriptor() {
+            return null;
+        }
+    }
+
+    public void testInvalidation() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        JobPropertyImpl promotion = new JobPropertyImpl(p);
+        p.addProperty(promotion);
+        PromotionProcess proc = promotion.addProcess("promo");
+        FreeStyleBuild b = assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+
+        VerdictCache cache = proc.getVerdicts();
+        CountingCondition cond = new CountingCondition();
+
+        // "not met" is remembered, too
+        assertNull(cache.isMet(proc, cond, b));
+        assertNull(cache.isMet(proc, cond, b));
+        assertEquals(1, cond.count);
+
+        // other builds don't affect it
+        cache.invalidate(b.getNumber()+1);
+        cache.isMet(proc, cond, b);
+        assertEquals(1, cond.count);
+
+        cache.invalidate(b.getNumber());
+        cache.isMet(proc, cond, b);
+        assertEquals(2, cond.count);
+
+        cache.invalidate();
+        cache.isMet(proc, cond, b);
+        assertEquals(3, cond.count);
+
+        VerdictCache.invalidate(p);
+        cache.isMet(proc, cond, b);
+        assertEquals(4, cond.count);
+
+        // a new build of the owner may change the verdicts
+        assertBuildStatusSuccess(p.scheduleBuild2(0).get());
+        cache.isMet(proc, cond, b);
+        assertEquals(5, cond.count);
+    }
+}
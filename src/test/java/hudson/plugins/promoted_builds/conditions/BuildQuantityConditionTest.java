@@ -0,0 +1,49 @@
+package hudson.plugins.promoted_builds.conditions;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.plugins.promoted_builds.JobPropertyImpl;
+import hudson.plugins.promoted_builds.Promotion;
+import hudson.plugins.promoted_builds.PromotionProcess;
+import hudson.plugins.promoted_builds.PromotionTestCase;
+
+import java.util.List;
+
+public class BuildQuantityConditionTest extends PromotionTestCase {
+    /**
+     * The count of recent successes follows the builds as they complete, and a failure starts it over.
+     */
+    public void testCountFollowsCompletions() throws Exception {
+        FreeStyleProject p = createFreeStyleProject();
+        JobPropertyImpl promotion = new JobPropertyImpl(p);
+        p.addProperty(promotion);
+        PromotionProcess promo = promotion.addProcess("promo");
+        promo.conditions.add(new BuildQuantityCondition("2"));
+
+        // the first window only marks where counting starts, and the next one may not overlap it
+        FreeStyleBuild[] b = new FreeStyleBuild[10];
+        for (int i=1; i<=5; i++)
+            b[i] = build(p, Result.SUCCESS);
+        b[6] = build(p, Result.FAILURE);
+        // 6 is in the window of 7 and 8
+        for (int i=7; i<=9; i++)
+            b[i] = build(p, Result.SUCCESS);
+        waitUntilNoActivity();
+
+        List<Promotion> promotions = promo.getBuilds();
+        assertEquals(2, promotions.size());
+        assertSame(b[9], promotions.get(0).getTarget());
+        assertSame(b[5], promotions.get(1).getTarget());
+    }
+
+    private FreeStyleBuild build(FreeStyleProject p, Result result) throws Exception {
+        p.getBuildersList().clear();
+        if (result!=Result.SUCCESS)
+            p.getBuildersList().add(new FixedResultBuilder(result));
+        FreeStyleBuild b = assertBuildStatus(result, p.scheduleBuild2(0).get());
+        // the promotion is evaluated asynchronously, and it looks at the latest builds
+        Thread.sleep(1000);
+        return b;
+    }
+}
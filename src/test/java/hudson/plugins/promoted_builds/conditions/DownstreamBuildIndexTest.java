@@ -0,0 +1,119 @@
+package hudson.plugins.promoted_builds.conditions;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.plugins.promoted_builds.DeferredSaver;
+import hudson.plugins.promoted_builds.JobPropertyImpl;
+import hudson.plugins.promoted_builds.PromotedBuildAction;
+import hudson.plugins.promoted_builds.PromotionProcess;
+import hudson.plugins.promoted_builds.PromotionTestCase;
+import hudson.plugins.promoted_builds.conditions.DownstreamPassCondition.PseudoDownstreamBuilds;
+
+import java.io.File;
+import java.util.List;
+
+public class DownstreamBuildIndexTest extends PromotionTestCase {
+    public void testHitAndMiss() throws Exception {
+        FreeStyleProject up = createFreeStyleProject("up");
+        FreeStyleProject down = createFreeStyleProject("down");
+        FreeStyleBuild u1 = assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+        FreeStyleBuild d1 = assertBuildStatusSuccess(down.scheduleBuild2(0).get());
+
+        DownstreamBuildIndex index = DownstreamBuildIndex.get(up);
+        index.add(u1.getNumber(), d1);
+        // recording the same build again doesn't duplicate it
+        index.add(u1.getNumber(), d1);
+
+        List<DownstreamBuildIndex.Link> links = index.getLinks(u1.getNumber(), "down");
+        assertEquals(1, links.size());
+        assertEquals(d1.getNumber(), links.get(0).number);
+        assertTrue(links.get(0).isPassing(false));
+
+        // other upstream builds and other jobs aren't affected
+        assertTrue(index.getLinks(u1.getNumber()+1, "down").isEmpty());
+        assertTrue(index.getLinks(u1.getNumber(), "other").isEmpty());
+
+        // survives a reload
+        assertTrue(DeferredSaver.flush(index));
+        DownstreamBuildIndex.forget(up);
+        index = DownstreamBuildIndex.get(up);
+        assertEquals(1, index.getLinks(u1.getNumber(), "down").size());
+
+        index.remove(u1.getNumber());
+        assertTrue(index.getLinks(u1.getNumber(), "down").isEmpty());
+    }
+
+    /**
+     * Links of upstream builds that are no longer retained aren't kept.
+     */
+    public void testPrunedByRetention() throws Exception {
+        FreeStyleProject up = createFreeStyleProject("up");
+        FreeStyleProject down = createFreeStyleProject("down");
+        FreeStyleBuild u1 = assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+        FreeStyleBuild u2 = assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+        FreeStyleBuild d1 = assertBuildStatusSuccess(down.scheduleBuild2(0).get());
+
+        DownstreamBuildIndex index = DownstreamBuildIndex.get(up);
+        index.add(u1.getNumber(), d1);
+        u1.delete();
+        index.add(u2.getNumber(), d1);
+
+        assertTrue(index.getLinks(u1.getNumber(), "down").isEmpty());
+        assertEquals(1, index.getLinks(u2.getNumber(), "down").size());
+    }
+
+    /**
+     * A failed build in the index doesn't hide a passing one known through other means.
+     */
+    public void testFallsBackWhenNoIndexedBuildPasses() throws Exception {
+        FreeStyleProject up = createFreeStyleProject("up");
+        FreeStyleProject down = createFreeStyleProject("down");
+        FreeStyleBuild u1 = assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+
+        addBuilder(down, new FixedResultBuilder(Result.FAILURE));
+        FreeStyleBuild d1 = assertBuildStatus(Result.FAILURE, down.scheduleBuild2(0).get());
+        down.getBuildersList().clear();
+        FreeStyleBuild d2 = assertBuildStatusSuccess(down.scheduleBuild2(0).get());
+
+        DownstreamBuildIndex.get(up).add(u1.getNumber(), d1);
+        PseudoDownstreamBuilds pdb = new PseudoDownstreamBuilds();
+        pdb.add(d2);
+        PromotedBuildAction.getOrAttach(u1).addAttachment(pdb);
+
+        JobPropertyImpl promotion = new JobPropertyImpl(up);
+        up.addProperty(promotion);
+        PromotionProcess proc = promotion.addProcess("promo");
+        DownstreamPassCondition cond = new DownstreamPassCondition("down");
+        proc.conditions.add(cond);
+
+        assertNotNull(cond.isMet(proc, u1));
+    }
+
+    /**
+     * A pending save goes to where the project is at the time it's written, and not at all once it's deleted.
+     */
+    public void testSavedWhereTheProjectIs() throws Exception {
+        FreeStyleProject up = createFreeStyleProject("up");
+        FreeStyleProject down = createFreeStyleProject("down");
+        FreeStyleBuild u1 = assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+        FreeStyleBuild d1 = assertBuildStatusSuccess(down.scheduleBuild2(0).get());
+        File oldDir = up.getRootDir();
+
+        DownstreamBuildIndex index = DownstreamBuildIndex.get(up);
+        index.add(u1.getNumber(), d1);
+        up.renameTo("up2");
+        assertTrue(DeferredSaver.flush(index));
+        assertFalse(oldDir.exists());
+        assertTrue(new File(up.getRootDir(), "promotions/downstream-builds.xml").exists());
+        assertSame(index, DownstreamBuildIndex.get(up));
+
+        index.remove(u1.getNumber());
+        File dir = up.getRootDir();
+        up.delete();
+        assertTrue(DeferredSaver.flush(index));
+        assertFalse(dir.exists());
+        // it's not kept around either
+        assertNotSame(index, DownstreamBuildIndex.get(up));
+    }
+}
@@ -0,0 +1,156 @@
+package hudson.plugins.promoted_builds.conditions;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.plugins.promoted_builds.JobPropertyImpl;
+import hudson.plugins.promoted_builds.PromotionProcess;
+import hudson.plugins.promoted_builds.PromotionTestCase;
+import hudson.tasks.Fingerprinter;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class DownstreamPassConditionTest extends PromotionTestCase {
+    /**
+     * A passing downstream build that's only related to the upstream build by fingerprints,
+     * and that's reported for another upstream build, doesn't leave the job marked as unmet.
+     */
+    public void testFingerprintOnly() throws Exception {
+        FreeStyleProject up = createFingerprintingProject("up");
+        FreeStyleProject a = createFingerprintingProject("a");
+        FreeStyleProject b = createFingerprintingProject("b");
+        assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+        // produces the same file, so the downstream builds are reported for the first build
+        FreeStyleBuild u2 = assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+
+        JobPropertyImpl jp = new JobPropertyImpl(up);
+        up.addProperty(jp);
+        PromotionProcess proc = jp.addProcess("promo");
+        DownstreamPassCondition cond = new DownstreamPassCondition("a,b");
+        proc.conditions.add(cond);
+        DownstreamPassCondition.RunListenerImpl.rebuildCache();
+
+        // neither has passed yet
+        assertNull(cond.isMet(proc, u2));
+
+        assertBuildStatusSuccess(a.scheduleBuild2(0).get());
+        FreeStyleBuild b1 = assertBuildStatusSuccess(b.scheduleBuild2(0).get());
+
+        // "a" is no longer known to be unmet, so this is worth evaluating, and it's met through the fingerprints
+        assertTrue(cond.onDownstreamCompleted(u2, b1));
+        assertNotNull(cond.isMet(proc, u2));
+    }
+
+    /**
+     * A deleted downstream build no longer certifies the upstream build.
+     */
+    public void testCertifierDeleted() throws Exception {
+        FreeStyleProject up = createFreeStyleProject("up");
+        FreeStyleProject down = createFreeStyleProject("down");
+        FreeStyleBuild u1 = assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+        FreeStyleBuild d1 = assertBuildStatusSuccess(down.scheduleBuild2(0).get());
+
+        JobPropertyImpl jp = new JobPropertyImpl(up);
+        up.addProperty(jp);
+        PromotionProcess proc = jp.addProcess("promo");
+        DownstreamPassCondition cond = new DownstreamPassCondition("down");
+        proc.conditions.add(cond);
+        DownstreamPassCondition.RunListenerImpl.rebuildCache();
+        DownstreamBuildIndex.get(up).add(u1.getNumber(), d1);
+
+        assertNotNull(cond.isMet(proc, u1));
+
+        d1.delete();
+        assertNull(cond.isMet(proc, u1));
+    }
+
+    /**
+     * The processes interested in a downstream job follow it as jobs are renamed and deleted.
+     */
+    public void testInterestedProcesses() throws Exception {
+        FreeStyleProject up = createFreeStyleProject("up");
+        FreeStyleProject down = createFreeStyleProject("down");
+        JobPropertyImpl jp = new JobPropertyImpl(up);
+        up.addProperty(jp);
+        PromotionProcess proc = jp.addProcess("promo");
+        proc.conditions.add(new DownstreamPassCondition("down"));
+
+        assertEquals(Collections.singletonList(proc), DownstreamPassCondition.RunListenerImpl.getInterestedProcesses(down));
+
+        // the condition still refers to the old name
+        down.renameTo("down2");
+        assertTrue(DownstreamPassCondition.RunListenerImpl.getInterestedProcesses(down).isEmpty());
+        down.renameTo("down");
+        assertEquals(Collections.singletonList(proc), DownstreamPassCondition.RunListenerImpl.getInterestedProcesses(down));
+
+        up.delete();
+        assertTrue(DownstreamPassCondition.RunListenerImpl.getInterestedProcesses(down).isEmpty());
+    }
+
+    /**
+     * A downstream build that completes after the upstream build promotes it, and only once.
+     */
+    public void testPromotedOnce() throws Exception {
+        FreeStyleProject up = createFingerprintingProject("up");
+        FreeStyleProject down = createFingerprintingProject("down");
+        JobPropertyImpl jp = new JobPropertyImpl(up);
+        up.addProperty(jp);
+        PromotionProcess proc = jp.addProcess("promo");
+        proc.conditions.add(new DownstreamPassCondition("down"));
+
+        FreeStyleBuild u1 = assertBuildStatusSuccess(up.scheduleBuild2(0).get());
+        Thread.sleep(1000);
+        assertTrue(proc.getBuilds().isEmpty());
+
+        // the second one is reported for the same upstream build
+        assertBuildStatusSuccess(down.scheduleBuild2(0).get());
+        assertBuildStatusSuccess(down.scheduleBuild2(0).get());
+        // the promotion is evaluated asynchronously
+        Thread.sleep(1000);
+        waitUntilNoActivity();
+
+        assertEquals(1, proc.getBuilds().size());
+        assertSame(u1, proc.getBuilds().get(0).getTarget());
+        assertEquals(1, jp.getJournal().getStatistics("promo").qualified);
+    }
+
+    /**
+     * The resolved downstream jobs are reused until jobs are created, renamed or deleted.
+     */
+    public void testJobList() throws Exception {
+        FreeStyleProject a = createFreeStyleProject("a");
+        DownstreamPassCondition cond = new DownstreamPassCondition("a, b,a");
+        assertEquals(Arrays.asList("a","b"), cond.getJobNames());
+        assertEquals(Collections.singletonList(a), cond.getJobList());
+        assertSame(cond.getJobList(), cond.getJobList());
+
+        FreeStyleProject b = createFreeStyleProject("b");
+        assertEquals(Arrays.asList(a,b), cond.getJobList());
+
+        a.renameTo("a2");
+        assertEquals(Collections.singletonList(b), cond.getJobList());
+
+        b.delete();
+        assertTrue(cond.getJobList().isEmpty());
+    }
+
+    /**
+     * Creates a project that produces the same file in every build, and fingerprints it.
+     */
+    private FreeStyleProject createFingerprintingProject(String name) throws IOException {
+        FreeStyleProject p = createFreeStyleProject(name);
+        p.getBuildersList().add(new TestBuilder() {
+            public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("a.jar").write("x", null);
+                return true;
+            }
+        });
+        p.getPublishersList().add(new Fingerprinter("a.jar", false));
+        return p;
+    }
+}